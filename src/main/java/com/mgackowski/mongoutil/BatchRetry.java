@@ -0,0 +1,122 @@
+package com.mgackowski.mongoutil;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWriteConcernException;
+import com.mongodb.bulk.BulkWriteError;
+
+/**
+ * Repeats a batch of writes that failed with a transient error, such as a
+ * primary stepping down or a socket timeout, waiting twice as long before
+ * each attempt. The whole batch is repeated, including the writes that were
+ * applied before the error, so it must only be used for idempotent writes.
+ */
+class BatchRetry {
+
+	private static final Logger LOG = LogManager.getLogger(BatchRetry.class);
+
+	/* Server error codes of a replica set electing a new primary or a node shutting down. */
+	private static final Set<Integer> TRANSIENT_CODES = new HashSet<>(Arrays.asList(
+			6,		// HostUnreachable
+			7,		// HostNotFound
+			89,		// NetworkTimeout
+			91,		// ShutdownInProgress
+			189,	// PrimarySteppedDown
+			10107,	// NotMaster
+			11600,	// InterruptedAtShutdown
+			11602,	// InterruptedDueToReplStateChange
+			13435,	// NotMasterNoSlaveOk
+			13436));	// NotMasterOrSecondary
+
+	private final int maxRetries;
+	private final long backoffMillis;
+	private final JoinMetrics metrics;
+
+	/**
+	 * @param maxRetries number of times a batch is repeated before giving up;
+	 * 0 never repeats
+	 * @param backoffMillis wait before the first repetition, doubled for each
+	 * further one
+	 */
+	BatchRetry(int maxRetries, long backoffMillis, JoinMetrics metrics) {
+		this.maxRetries = maxRetries;
+		this.backoffMillis = backoffMillis;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Executes the batch, repeating it while it fails with a transient error
+	 * and retries are left.
+	 * @throws MongoException the last error, if it is not transient or no
+	 * retries are left
+	 */
+	void execute(Runnable batch) throws InterruptedException {
+		long backoff = backoffMillis;
+		for (int attempt = 0; ; attempt++) {
+			try {
+				batch.run();
+				return;
+			} catch (MongoException e) {
+				if (!isTransient(e) || attempt >= maxRetries) {
+					if (isTransient(e)) {
+						metrics.gaveUp();
+						LOG.error("Giving up on batch after {} retries", attempt);
+					}
+					throw e;
+				}
+				metrics.retried();
+				LOG.warn("Transient error writing batch, retry {} of {} in {} ms: {}",
+						attempt + 1, maxRetries, backoff, e.getMessage());
+				Thread.sleep(backoff);
+				backoff *= 2;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the error is caused by the cluster being temporarily
+	 * unavailable, rather than by the writes themselves
+	 */
+	static boolean isTransient(MongoException e) {
+		if (e instanceof MongoSocketException
+				|| e instanceof MongoTimeoutException
+				|| e instanceof MongoNotPrimaryException
+				|| e instanceof MongoNodeIsRecoveringException) {
+			return true;
+		}
+		if (e instanceof MongoWriteConcernException) {
+			return TRANSIENT_CODES.contains(
+					((MongoWriteConcernException) e).getWriteConcernError().getCode());
+		}
+		if (e instanceof MongoBulkWriteException) {
+			MongoBulkWriteException bulk = (MongoBulkWriteException) e;
+			if (bulk.getWriteConcernError() != null
+					&& TRANSIENT_CODES.contains(bulk.getWriteConcernError().getCode())) {
+				return true;
+			}
+			for (BulkWriteError error : bulk.getWriteErrors()) {
+				if (!TRANSIENT_CODES.contains(error.getCode())) {
+					return false;
+				}
+			}
+			return !bulk.getWriteErrors().isEmpty();
+		}
+		if (e instanceof MongoCommandException) {
+			return TRANSIENT_CODES.contains(((MongoCommandException) e).getErrorCode());
+		}
+		return false;
+	}
+
+}
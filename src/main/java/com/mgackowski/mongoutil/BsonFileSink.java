@@ -0,0 +1,41 @@
+package com.mgackowski.mongoutil;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+import com.mongodb.MongoClient;
+
+/**
+ * A {@link FileSink} writing each record as a BSON document, one after
+ * another, in the format of {@code mongodump} – so the file can be inspected
+ * with {@code bsondump} or loaded with {@code mongorestore}.
+ */
+public class BsonFileSink extends FileSink {
+
+	private static final Codec<Document> CODEC =
+			MongoClient.getDefaultCodecRegistry().get(Document.class);
+
+	/**
+	 * @param file the file to write; created, or truncated if it exists
+	 * @throws IOException if the file cannot be opened for writing
+	 */
+	public BsonFileSink(Path file) throws IOException {
+		super(file);
+	}
+
+	@Override
+	protected byte[] encode(Document record) {
+		BasicOutputBuffer output = new BasicOutputBuffer();
+		try (BsonBinaryWriter writer = new BsonBinaryWriter(output)) {
+			CODEC.encode(writer, record, EncoderContext.builder().build());
+		}
+		return output.toByteArray();
+	}
+
+}
@@ -0,0 +1,217 @@
+package com.mgackowski.mongoutil;
+
+import static com.mongodb.client.model.Aggregates.bucketAuto;
+import static com.mongodb.client.model.Aggregates.group;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Filters.nor;
+import static com.mongodb.client.model.Indexes.ascending;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mgackowski.mongoutil.model.CollModel;
+import com.mgackowski.mongoutil.model.DBModel;
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+
+/**
+ * Splits a run of a {@link DBModel} into work units – one per join and
+ * partition of its source collection – and stores them in a coordination
+ * collection, from which any number of {@link Worker} processes claim and
+ * execute them.
+ * <p>
+ * Usage:
+ * <ol><li>Call {@link #plan(DBModel, int)} once, from any process.</li>
+ * <li>Start one or more Workers with the same run identifier and model.</li>
+ * <li>Optionally call {@link #status()} to follow progress.</li></ol>
+ * Planning is safe to repeat: units already planned for the run identifier
+ * are kept as they are.
+ */
+public class Coordinator {
+
+	private static final Logger LOG = LogManager.getLogger(Coordinator.class);
+
+	/** Name of the collection holding the work units of all runs. */
+	public static final String UNITS_COLL_NAME = "_denormalizer_units";
+
+	static final String PENDING = "pending";
+	static final String LEASED = "leased";
+	static final String DONE = "done";
+	static final String FAILED = "failed";
+
+	private MongoDatabase db;
+	private ShardTopology topology;
+	private String runId;
+
+	/**
+	 * @param db the database the model will be applied to, which also holds
+	 * the coordination collection
+	 * @param topology the sharding metadata of the cluster
+	 * @param runId identifier shared by the coordinator and all workers of a run
+	 */
+	public Coordinator(MongoDatabase db, ShardTopology topology, String runId) {
+		this.db = db;
+		this.topology = topology;
+		this.runId = runId;
+	}
+
+	/**
+	 * Validates the model and stores one pending work unit per join and
+	 * source partition. Sharded source collections are split per shard (see
+	 * {@link ShardTopology#partitions(String)}); others are split into ranges
+	 * of {@code _id} of roughly equal size.
+	 * @param model the model to apply
+	 * @param partitionsPerJoin number of ranges to split unsharded source
+	 * collections into
+	 * @return true if the run is planned
+	 */
+	public boolean plan(DBModel model, int partitionsPerJoin) {
+
+		LOG.info("Validating model...");
+
+		if(!model.validateAll(db)) {
+			LOG.error("Model validation failed, run not planned. {}", model);
+			return false;
+		}
+
+		MongoCollection<Document> units = units(db);
+		if (units.count(eq("run", runId)) > 0) {
+			LOG.info("Run '{}' is already planned", runId);
+			return true;
+		}
+
+		List<Document> planned = new ArrayList<>();
+		List<CollModel> collections = model.getCollections();
+		for (int c = 0; c < collections.size(); c++) {
+			CollModel collection = collections.get(c);
+			List<JoinModel> joins = collection.getJoins();
+			if (joins.isEmpty()) {
+				continue;
+			}
+			List<Bson> partitions = topology.partitions(
+					db.getName() + "." + collection.getName());
+			if (partitions.size() == 1) {
+				partitions = idRanges(collection.getName(), partitionsPerJoin);
+			}
+			for (int j = 0; j < joins.size(); j++) {
+				for (int p = 0; p < partitions.size(); p++) {
+					planned.add(new Document("_id", runId + ":" + c + ":" + j + ":" + p)
+							.append("run", runId)
+							.append("model", fingerprint(model))
+							.append("collection", c)
+							.append("join", j)
+							.append("partition", partitions.get(p).toBsonDocument(
+									BsonDocument.class, db.getCodecRegistry()).toJson())
+							.append("state", PENDING)
+							.append("attempts", 0)
+							.append("leaseExpires", new Date(0)));
+				}
+			}
+		}
+
+		if (!planned.isEmpty()) {
+			units.insertMany(planned);
+		}
+		LOG.info("Run '{}' planned with {} work units", runId, planned.size());
+		return true;
+	}
+
+	/**
+	 * Logs and returns the number of work units of the run in each state.
+	 * @return a map from state (pending, leased, done, failed) to count
+	 */
+	public Map<String, Long> status() {
+		Map<String, Long> counts = new LinkedHashMap<>();
+		for (String state : Arrays.asList(PENDING, LEASED, DONE, FAILED)) {
+			counts.put(state, 0L);
+		}
+		for (Document count : units(db).aggregate(Arrays.asList(
+				match(eq("run", runId)),
+				group("$state", Accumulators.sum("count", 1))))) {
+			counts.put(count.getString("_id"), ((Number) count.get("count")).longValue());
+		}
+		LOG.info("Run '{}': {}", runId, counts);
+		return counts;
+	}
+
+	/**
+	 * Splits a collection into ranges of {@code _id} holding roughly the same
+	 * number of documents, plus a last filter for documents outside all
+	 * ranges, so that together the filters match every document exactly once.
+	 */
+	private List<Bson> idRanges(String collName, int count) {
+		if (count <= 1) {
+			return Collections.singletonList(new Document());
+		}
+		List<Document> buckets = db.getCollection(collName)
+				.aggregate(Arrays.asList(bucketAuto("$_id", count)))
+				.allowDiskUse(true)
+				.into(new ArrayList<>());
+		if (buckets.size() <= 1) {
+			return Collections.singletonList(new Document());
+		}
+		List<Bson> ranges = new ArrayList<>();
+		for (int i = 0; i < buckets.size(); i++) {
+			Document bounds = (Document) buckets.get(i).get("_id");
+			Bson upper = i == buckets.size() - 1
+					? lte("_id", bounds.get("max"))
+					: lt("_id", bounds.get("max"));
+			ranges.add(and(gte("_id", bounds.get("min")), upper));
+		}
+		List<Bson> partitions = new ArrayList<>(ranges);
+		partitions.add(nor(ranges));
+		return partitions;
+	}
+
+	static MongoCollection<Document> units(MongoDatabase db) {
+		MongoCollection<Document> units = db.getCollection(UNITS_COLL_NAME);
+		units.createIndex(ascending("run", "state", "leaseExpires"));
+		return units;
+	}
+
+	/**
+	 * Identifies a model so that workers can refuse units planned for a
+	 * different model under the same run identifier. Built from every field
+	 * of every join rather than from their descriptions, which omit some.
+	 */
+	static int fingerprint(DBModel model) {
+		List<Object> fields = new ArrayList<>();
+		for (CollModel collection : model.getCollections()) {
+			fields.add(collection.getName());
+			for (JoinModel join : collection.getJoins()) {
+				fields.add(Arrays.asList(join.getTargetCollection(), join.getTargetLinkColumn(),
+						join.getSourceForeignKeyColumn(), join.getSourceLinkColumn(),
+						join.getTargetNewArrayName(), join.getEmbeddedFields(),
+						join.getLookupCollection(), join.getLookupFields(),
+						toJson(join.getSourceFilter()), toJson(join.getTargetFilter()),
+						join.isCoercingKeys(), join.getRouting()));
+			}
+		}
+		return fields.hashCode();
+	}
+
+	private static String toJson(Bson filter) {
+		return filter == null ? null : filter.toBsonDocument(BsonDocument.class,
+				MongoClient.getDefaultCodecRegistry()).toJson();
+	}
+
+}
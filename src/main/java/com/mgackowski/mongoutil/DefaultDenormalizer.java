@@ -1,20 +1,14 @@
 package com.mgackowski.mongoutil;
 
-import static com.mongodb.client.model.Filters.eq;
-import static com.mongodb.client.model.Filters.exists;
-import static com.mongodb.client.model.Updates.push;
-
 import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.bson.Document;
+import org.bson.conversions.Bson;
 
 import com.mgackowski.mongoutil.model.CollModel;
 import com.mgackowski.mongoutil.model.DBModel;
 import com.mgackowski.mongoutil.model.JoinModel;
-import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 
 /**
@@ -26,6 +20,8 @@ public class DefaultDenormalizer implements Denormalizer {
 	private static final Logger LOG = LogManager.getLogger(Denormalizer.class);
 	
 	private MongoDatabase db;
+	private ShardTopology topology;
+	private DenormalizerConfig config;
 	
 	/**
 	 * Creates a Denormalizer object which will act on a pre-existing MongoDB
@@ -34,7 +30,22 @@ public class DefaultDenormalizer implements Denormalizer {
 	 * @param db the MongoDB Java driver database object
 	 */
 	protected DefaultDenormalizer(MongoDatabase db) {
+		this(db, ShardTopology.unsharded(), new DenormalizerConfig());
+	}
+	
+	/**
+	 * Creates a Denormalizer object which will split scans of source
+	 * collections per shard and route updates of target collections by their
+	 * shard key, as described by the topology.
+	 * @param db the MongoDB Java driver database object
+	 * @param topology the sharding metadata of the cluster
+	 * @param config settings for the execution of each join
+	 */
+	protected DefaultDenormalizer(MongoDatabase db, ShardTopology topology,
+			DenormalizerConfig config) {
 		this.db = db;
+		this.topology = topology;
+		this.config = config;
 	}
 
 	/* (non-Javadoc)
@@ -45,7 +56,7 @@ public class DefaultDenormalizer implements Denormalizer {
 		
 		LOG.info("Validating model...");
 		
-		if(!model.validateAll()) {
+		if(!model.validateAll(db)) {
 			LOG.error("Model validation failed, operation aborted. {}", model);
 			return false;
 		}
@@ -62,45 +73,24 @@ public class DefaultDenormalizer implements Denormalizer {
 			LOG.info("Processing collection '{}'", collection);
 			
 			String sourceCollName = collection.getName();
-			MongoCollection<Document> sourceColl = db.getCollection(sourceCollName);
 
 			for (JoinModel join : joins) {
 				
 				String targetCollName = join.getTargetCollection();
 				String targetNewArrayName = join.getTargetNewArrayName();
-				String targetKeyName = join.getTargetLinkColumn();
-				String sourceForeignKeyName = join.getSourceForeignKeyColumn();
 				String sourceLinkColumn = join.getSourceLinkColumn();
-				List<String> fieldsToEmbed = join.getEmbeddedFields();
 				
-				MongoCollection<Document> targetColl = db.getCollection(targetCollName);
-
-				MongoCursor<Document> links = sourceColl
-						.find(exists(sourceForeignKeyName))
-						.iterator();
+				List<Bson> partitions = topology.partitions(
+						db.getName() + "." + sourceCollName);
 				
-				while(links.hasNext()) {
-					Document doc = links.next();
-					Object sourceForeignKeyValue = doc.get(sourceForeignKeyName);
-					LOG.debug("   Processing {} : {}", sourceForeignKeyName, sourceForeignKeyValue);
-					
-					if(fieldsToEmbed.isEmpty()) {
-					targetColl.updateMany(
-						eq(targetKeyName, sourceForeignKeyValue),
-							push(targetNewArrayName, doc.get(sourceLinkColumn)));
-					}
-					else {
-						Document referenceObject = new Document("_id", doc.get(sourceLinkColumn));
-						for(String field : fieldsToEmbed) {
-							Object value = doc.get(field);
-							if(value == null) continue;
-							referenceObject.append(field, doc.get(field));
-						}
-						targetColl.updateMany(
-								eq(targetKeyName, sourceForeignKeyValue),
-									push(targetNewArrayName, referenceObject));
-					}
+				JoinPipeline pipeline = new JoinPipeline(db, sourceCollName,
+						join, topology, config);
+				if (!pipeline.run(partitions)) {
+					LOG.error("Denormalization aborted, array {} in {} is incomplete.",
+							targetNewArrayName, targetCollName);
+					return false;
 				}
+				
 				LOG.info("Done – array {} in {} is referencing {} documents by {}",
 						targetNewArrayName, targetCollName, sourceCollName, sourceLinkColumn);
 			}
@@ -109,4 +99,4 @@ public class DefaultDenormalizer implements Denormalizer {
 		return true;
 	}
 
-}
+}
\ No newline at end of file
@@ -0,0 +1,241 @@
+package com.mgackowski.mongoutil;
+
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Aggregates.out;
+import static com.mongodb.client.model.Aggregates.unwind;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Updates.unset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mgackowski.mongoutil.model.CollModel;
+import com.mgackowski.mongoutil.model.DBModel;
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mgackowski.mongoutil.model.KeyTypes;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * An implementation of the {@link Renormalizer} interface which reconstructs
+ * source collections entirely server-side with an aggregation pipeline
+ * ({@code $unwind}, {@code $project}, then {@code $out} into an empty
+ * collection or {@code $merge}, which needs MongoDB 4.2, into an existing
+ * one).
+ */
+public class DefaultRenormalizer implements Renormalizer {
+
+	private static final Logger LOG = LogManager.getLogger(Renormalizer.class);
+
+	private MongoDatabase db;
+
+	/**
+	 * Creates a Renormalizer object which will act on a pre-existing MongoDB
+	 * Database object.
+	 * @param db the MongoDB Java driver database object
+	 */
+	protected DefaultRenormalizer(MongoDatabase db) {
+		this.db = db;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.mgackowski.mongoutil.Renormalizer#renormalize(com.mgackowski.mongoutil.model.DBModel, boolean)
+	 */
+	@Override
+	public boolean renormalize(DBModel model, boolean removeArrays) {
+
+		LOG.info("Validating model...");
+
+		if(!model.validateAll()) {
+			LOG.error("Model validation failed, operation aborted. {}", model);
+			return false;
+		}
+
+		LOG.info("Renormalizing...");
+
+		for (CollModel collection : model.getCollections()) {
+
+			List<JoinModel> joins = collection.getJoins();
+			if(joins.isEmpty()) {
+				continue;
+			}
+
+			LOG.info("Processing collection '{}'", collection);
+
+			if (joins.size() > 1 && !joins.stream().allMatch(DefaultRenormalizer::restoresId)) {
+				LOG.error("Documents of '{}' restored from different joins can only be matched "
+						+ "by _id, but not every join references _id; renormalize with a model "
+						+ "holding one of these joins. {}", collection.getName(), collection);
+				return false;
+			}
+
+			/* original key types, read before restored documents are added */
+			Map<JoinModel, BsonType> sourceKeyTypes = new HashMap<>();
+			for (JoinModel join : joins) {
+				if (join.isCoercingKeys()) {
+					BsonType type = sourceKeyType(collection.getName(), join);
+					if (type == null) {
+						return false;
+					}
+					sourceKeyTypes.put(join, type);
+				}
+			}
+
+			/* all but the first join, and the first into a collection that is not
+			 * empty, need $merge; checked before anything is written */
+			boolean intoEmpty = db.getCollection(collection.getName())
+					.find().limit(1).first() == null;
+			if (!intoEmpty && !restoresId(joins.get(0))) {
+				LOG.error("Collection '{}' is not empty and its documents cannot be matched by _id, "
+						+ "drop it before renormalizing; join={}", collection.getName(), joins.get(0));
+				return false;
+			}
+			if ((!intoEmpty || joins.size() > 1) && !supportsMerge()) {
+				return false;
+			}
+
+			for (JoinModel join : joins) {
+				if (!reconstruct(collection.getName(), join, sourceKeyTypes.get(join), intoEmpty)) {
+					return false;
+				}
+				intoEmpty = false;
+			}
+
+			if (removeArrays) {
+				for (JoinModel j : joins) {
+					long modified = db.getCollection(j.getTargetCollection())
+							.updateMany(exists(j.getTargetNewArrayName()),
+									unset(j.getTargetNewArrayName()))
+							.getModifiedCount();
+					LOG.info("Removed array {} from {} documents in {}",
+							j.getTargetNewArrayName(), modified, j.getTargetCollection());
+				}
+			}
+		}
+		LOG.info("Renormalization done on collections provided in the model.");
+		return true;
+	}
+
+	/**
+	 * @param sourceKeyType the original type of the foreign key if the join
+	 * coerced keys, to convert the target's keys back to; null otherwise
+	 * @param intoEmpty true to replace the source collection with {@code $out},
+	 * false to add to it with {@code $merge} by {@code _id}
+	 */
+	private boolean reconstruct(String sourceCollName, JoinModel join, BsonType sourceKeyType,
+			boolean intoEmpty) {
+
+		String targetCollName = join.getTargetCollection();
+		String targetNewArrayName = join.getTargetNewArrayName();
+		String sourceLinkColumn = join.getSourceLinkColumn();
+		boolean embedded = join.isEmbedding();
+		boolean restoresId = restoresId(join);
+
+		String element = "$" + targetNewArrayName;
+		String linkValue = embedded ? element + "._id" : element;
+
+		Document projection = new Document();
+		if (restoresId) {
+			projection.append("_id", linkValue);
+		} else {
+			projection.append("_id", 0).append(sourceLinkColumn, linkValue);
+		}
+		String targetKey = "$" + join.getTargetLinkColumn();
+		projection.append(join.getSourceForeignKeyColumn(), sourceKeyType == null ? targetKey
+				: new Document("$convert", new Document("input", targetKey)
+						.append("to", DefaultVerifier.convertType(sourceKeyType))
+						.append("onError", targetKey)));
+		for (String field : join.getEmbeddedFields()) {
+			projection.append(field, element + "." + field);
+		}
+
+		List<Bson> pipeline = new ArrayList<>();
+		pipeline.add(match(exists(targetNewArrayName)));
+		pipeline.add(unwind(element));
+		pipeline.add(new Document("$project", projection));
+
+		if (intoEmpty) {
+			pipeline.add(out(sourceCollName));
+		} else {
+			/* fields already present, original or restored by an earlier join, win */
+			pipeline.add(new Document("$merge", new Document("into", sourceCollName)
+					.append("whenMatched", Arrays.asList(new Document("$replaceRoot",
+							new Document("newRoot", new Document("$mergeObjects",
+									Arrays.asList("$$new", "$$ROOT"))))))
+					.append("whenNotMatched", "insert")));
+		}
+
+		try {
+			db.getCollection(targetCollName).aggregate(pipeline)
+					.allowDiskUse(true)
+					.toCollection();
+		} catch (MongoException e) {
+			LOG.error("Failed to reconstruct '{}' from {}: {}", sourceCollName, join, e.getMessage());
+			return false;
+		}
+
+		LOG.info("Done – {} reconstructed from array {} in {}",
+				sourceCollName, targetNewArrayName, targetCollName);
+		return true;
+	}
+
+	private static boolean restoresId(JoinModel join) {
+		return "_id".equals(join.getSourceLinkColumn());
+	}
+
+	/**
+	 * @return the type of the foreign key in the source collection's
+	 * remaining documents, or null (logging why) if there are none, as keys
+	 * coerced to the target key type cannot be restored to an unknown type
+	 */
+	private BsonType sourceKeyType(String sourceCollName, JoinModel join) {
+		String foreignKey = join.getSourceForeignKeyColumn();
+		Document doc = db.getCollection(sourceCollName).find(exists(foreignKey))
+				.projection(include(foreignKey))
+				.first();
+		BsonType type = doc == null ? null : KeyTypes.typeOf(doc.get(foreignKey));
+		if (type == null || DefaultVerifier.convertType(type) == null) {
+			LOG.error("Cannot restore the original type of {} in '{}', which the join coerced: "
+					+ "no source document holds it; remove coerceKeys() from the model to restore "
+					+ "keys in the type of {}. join={}", foreignKey, sourceCollName,
+					join.getTargetLinkColumn(), join);
+			return null;
+		}
+		return type;
+	}
+
+	/**
+	 * @return true if the server supports {@code $merge}, which needs MongoDB
+	 * 4.2; otherwise logs why it is needed
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean supportsMerge() {
+		Document buildInfo = db.runCommand(new Document("buildInfo", 1));
+		List<Integer> version = (List<Integer>) buildInfo.get("versionArray");
+		if (isAtLeast(version, 4, 2)) {
+			return true;
+		}
+		LOG.error("Restoring into a collection that is not empty, or from several joins, needs "
+				+ "$merge, which needs MongoDB 4.2 or later; the server is {}.",
+				buildInfo.getString("version"));
+		return false;
+	}
+
+	static boolean isAtLeast(List<Integer> version, int major, int minor) {
+		if (version == null || version.size() < 2) {
+			return false;
+		}
+		return version.get(0) > major || (version.get(0) == major && version.get(1) >= minor);
+	}
+
+}
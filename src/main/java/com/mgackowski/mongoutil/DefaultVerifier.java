@@ -0,0 +1,333 @@
+package com.mgackowski.mongoutil;
+
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Aggregates.out;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Projections.include;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mgackowski.mongoutil.model.CollModel;
+import com.mgackowski.mongoutil.model.DBModel;
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * An implementation of the {@link Verifier} interface which does all counting
+ * server-side with aggregation pipelines, so that no documents other than
+ * a small sample of mismatches are transferred to the client.
+ * <p>
+ * For each join, source documents are grouped by foreign key into a temporary
+ * collection holding the expected array length per key; the target collection
+ * is then projected to the actual array length per key and looked up in the
+ * temporary collection by its primary key.
+ * <p>
+ * Idempotent writes add each reference to an array once, so if they were
+ * used, the expected length is the number of distinct references per key
+ * rather than the number of source documents.
+ */
+public class DefaultVerifier implements Verifier {
+
+	private static final Logger LOG = LogManager.getLogger(Verifier.class);
+
+	private static final String TEMP_COLL_PREFIX = "_denormalizer_verify_";
+	private static final int SAMPLE_SIZE = 10;
+	private static final int MAX_DIFF_ELEMENTS = 1000;
+
+	private MongoDatabase db;
+	private boolean idempotentWrites;
+
+	/**
+	 * Creates a Verifier object which will act on a pre-existing MongoDB
+	 * Database object.
+	 * @param db the MongoDB Java driver database object
+	 */
+	protected DefaultVerifier(MongoDatabase db) {
+		this(db, new DenormalizerConfig());
+	}
+
+	/**
+	 * Creates a Verifier object for arrays written with the given settings.
+	 * @param db the MongoDB Java driver database object
+	 * @param config the settings the denormalization ran with; only
+	 * {@link DenormalizerConfig#isIdempotentWrites()} is used
+	 */
+	protected DefaultVerifier(MongoDatabase db, DenormalizerConfig config) {
+		this.db = db;
+		this.idempotentWrites = config.isIdempotentWrites();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.mgackowski.mongoutil.Verifier#verify(com.mgackowski.mongoutil.model.DBModel)
+	 */
+	@Override
+	public boolean verify(DBModel model) {
+
+		LOG.info("Validating model...");
+
+		if(!model.validateAll(db)) {
+			LOG.error("Model validation failed, verification aborted. {}", model);
+			return false;
+		}
+
+		LOG.info("Verifying...");
+
+		boolean consistent = true;
+		for (CollModel collection : model.getCollections()) {
+			for (JoinModel join : collection.getJoins()) {
+				if (!verifyJoin(collection.getName(), join)) {
+					consistent = false;
+				}
+			}
+		}
+
+		if (consistent) {
+			LOG.info("Verification done, all arrays are consistent with their sources.");
+		} else {
+			LOG.error("Verification done, inconsistencies found.");
+		}
+		return consistent;
+	}
+
+	private boolean verifyJoin(String sourceCollName, JoinModel join) {
+
+		String targetCollName = join.getTargetCollection();
+		String targetNewArrayName = join.getTargetNewArrayName();
+
+		LOG.info("Verifying array {} in {} against {}", targetNewArrayName,
+				targetCollName, sourceCollName);
+
+		/* unique, so that verifications running at once do not share it */
+		String tempCollName = TEMP_COLL_PREFIX + sourceCollName + "_" + targetNewArrayName
+				+ "_" + new ObjectId().toHexString();
+		MongoCollection<Document> tempColl = db.getCollection(tempCollName);
+		tempColl.drop();
+
+		try {
+			db.getCollection(sourceCollName).aggregate(sourcePipeline(join, tempCollName))
+				.allowDiskUse(true)
+				.toCollection();
+
+			Document result = db.getCollection(targetCollName)
+					.aggregate(targetPipeline(join, tempCollName, SAMPLE_SIZE))
+					.allowDiskUse(true)
+					.first();
+
+			Document sourceTotals = tempColl.aggregate(Arrays.asList(
+					new Document("$group", new Document("_id", null)
+							.append("keys", new Document("$sum", 1))
+							.append("expected", new Document("$sum", "$expected")))))
+				.first();
+
+			long sourceDocs = sourceTotals == null ? 0 : toLong(sourceTotals.get("expected"));
+			long sourceKeys = sourceTotals == null ? 0 : toLong(sourceTotals.get("keys"));
+
+			if (result == null) {
+				result = new Document();
+			}
+			List<Document> totalsList = result.get("totals", new ArrayList<Document>());
+			List<Document> countList = result.get("mismatchCount", new ArrayList<Document>());
+			List<Document> sample = result.get("mismatchSample", new ArrayList<Document>());
+			long arrayElements = totalsList.isEmpty() ? 0 : toLong(totalsList.get(0).get("actual"));
+			long matchedSourceDocs = totalsList.isEmpty() ? 0 : toLong(totalsList.get(0).get("expected"));
+			long mismatchedKeys = countList.isEmpty() ? 0 : toLong(countList.get(0).get("count"));
+
+			String counted = idempotentWrites ? "distinct references" : "source documents";
+			LOG.info("   {} {} with {} distinct keys, {} array elements in target",
+					sourceDocs, counted, sourceKeys, arrayElements);
+			if (matchedSourceDocs < sourceDocs) {
+				LOG.warn("   {} {} have keys not present in {}",
+						sourceDocs - matchedSourceDocs, counted, targetCollName);
+			}
+
+			if (mismatchedKeys == 0) {
+				LOG.info("Done – array {} in {} is consistent with {}",
+						targetNewArrayName, targetCollName, sourceCollName);
+				return true;
+			}
+
+			LOG.error("Done – array {} in {} has wrong length for {} keys, sample:",
+					targetNewArrayName, targetCollName, mismatchedKeys);
+			for (Document mismatch : sample) {
+				logDiff(sourceCollName, join, mismatch);
+			}
+			return false;
+
+		} finally {
+			tempColl.drop();
+		}
+	}
+
+	/**
+	 * Builds the pipeline writing the expected array length per source key
+	 * to the temporary collection: the number of source documents, or of
+	 * distinct references if writes were idempotent.
+	 * @param tempCollName the collection of expected lengths per source key
+	 */
+	List<Bson> sourcePipeline(JoinModel join, String tempCollName) {
+		if (!idempotentWrites) {
+			return Arrays.asList(
+					match(join.sourceQuery()),
+					new Document("$group", new Document("_id", sourceKeyExpression(join))
+							.append("expected", new Document("$sum", 1))),
+					out(tempCollName));
+		}
+		/* grouped twice rather than with $addToSet, so no key holds all its references */
+		return Arrays.asList(
+				match(join.sourceQuery()),
+				new Document("$group", new Document("_id", new Document("key", sourceKeyExpression(join))
+						.append("reference", "$" + join.getSourceLinkColumn()))),
+				new Document("$group", new Document("_id", "$_id.key")
+						.append("expected", new Document("$sum", 1))),
+				out(tempCollName));
+	}
+
+	/**
+	 * Builds the pipeline projecting each target document to its key and
+	 * array length, looking up the expected length in the temporary
+	 * collection, and summarizing in a single {@code $facet}: the totals, the
+	 * number of mismatched keys and a sample of them. Mismatches are counted
+	 * and sampled in separate branches, so that no single document has to
+	 * hold every mismatched key. The expected total counts every key once,
+	 * however many target documents share it.
+	 * @param tempCollName the collection of expected lengths per source key
+	 * @param sampleSize number of mismatched keys to return
+	 */
+	static List<Bson> targetPipeline(JoinModel join, String tempCollName, int sampleSize) {
+
+		String targetNewArrayName = join.getTargetNewArrayName();
+
+		Document arraySize = new Document("$cond", Arrays.asList(
+				new Document("$isArray", "$" + targetNewArrayName),
+				new Document("$size", "$" + targetNewArrayName),
+				0));
+
+		Document mismatch = new Document("$match", new Document("$expr",
+				new Document("$ne", Arrays.asList("$actual", "$expected"))));
+
+		List<Bson> totals = Arrays.asList(
+				new Document("$group", new Document("_id", "$key")
+						.append("actual", new Document("$sum", "$actual"))
+						.append("expected", new Document("$first", "$expected"))),
+				new Document("$group", new Document("_id", null)
+						.append("actual", new Document("$sum", "$actual"))
+						.append("expected", new Document("$sum", "$expected"))));
+		List<Bson> mismatchCount = Arrays.asList(
+				mismatch,
+				new Document("$count", "count"));
+		List<Bson> mismatchSample = Arrays.asList(
+				mismatch,
+				new Document("$limit", sampleSize));
+
+		return Arrays.asList(
+				match(join.targetQuery()),
+				new Document("$project", new Document("_id", 0)
+						.append("key", "$" + join.getTargetLinkColumn())
+						.append("actual", arraySize)),
+				new Document("$lookup", new Document("from", tempCollName)
+						.append("localField", "key")
+						.append("foreignField", "_id")
+						.append("as", "source")),
+				new Document("$project", new Document("key", 1)
+						.append("actual", 1)
+						.append("expected", new Document("$ifNull", Arrays.asList(
+								new Document("$arrayElemAt", Arrays.asList("$source.expected", 0)),
+								0)))),
+				new Document("$facet", new Document("totals", totals)
+						.append("mismatchCount", mismatchCount)
+						.append("mismatchSample", mismatchSample)));
+	}
+
+	/**
+	 * Groups source documents by foreign key, converting the key server-side
+	 * if the join coerces keys to the target key type.
+	 */
+	private Object sourceKeyExpression(JoinModel join) {
+		String field = "$" + join.getSourceForeignKeyColumn();
+		String convertTo = convertType(join.getTargetKeyType());
+		if (!join.isCoercingKeys() || convertTo == null) {
+			return field;
+		}
+		return new Document("$convert", new Document("input", field)
+				.append("to", convertTo)
+				.append("onError", field));
+	}
+
+	/**
+	 * @return the name of the type for {@code $convert}, or null if it cannot
+	 * be converted to
+	 */
+	static String convertType(BsonType type) {
+		if (type == null) return null;
+		switch (type) {
+		case INT32: return "int";
+		case INT64: return "long";
+		case DOUBLE: return "double";
+		case STRING: return "string";
+		case OBJECT_ID: return "objectId";
+		default: return null;
+		}
+	}
+
+	/**
+	 * Fetches the source references and target array of a single mismatched
+	 * key and logs the elements missing from, or unexpected in, the array.
+	 */
+	private void logDiff(String sourceCollName, JoinModel join, Document mismatch) {
+
+		Object key = mismatch.get("key");
+		String sourceLinkColumn = join.getSourceLinkColumn();
+		String targetNewArrayName = join.getTargetNewArrayName();
+
+		Map<Object, Integer> counts = new HashMap<>();
+		Bson sourceFilter = and(join.sourceQuery(), eq(join.getSourceForeignKeyColumn(), key));
+		for (Document doc : db.getCollection(sourceCollName).find(sourceFilter)
+				.projection(include(sourceLinkColumn))
+				.limit(MAX_DIFF_ELEMENTS)) {
+			counts.merge(doc.get(sourceLinkColumn), 1,
+					idempotentWrites ? (count, one) -> 1 : Integer::sum);
+		}
+
+		Document target = db.getCollection(join.getTargetCollection())
+				.find(join.targetQuery(key))
+				.projection(include(targetNewArrayName))
+				.first();
+		Object array = target == null ? null : target.get(targetNewArrayName);
+		if (array instanceof List) {
+			int seen = 0;
+			for (Object element : (List<?>) array) {
+				if (++seen > MAX_DIFF_ELEMENTS) break;
+				Object id = element instanceof Document ? ((Document) element).get("_id") : element;
+				counts.merge(id, -1, Integer::sum);
+			}
+		}
+
+		List<Object> missing = new ArrayList<>();
+		List<Object> unexpected = new ArrayList<>();
+		counts.forEach((id, count) -> {
+			for (int i = 0; i < count; i++) missing.add(id);
+			for (int i = 0; i > count; i--) unexpected.add(id);
+		});
+
+		LOG.error("   key {}: expected {} elements, found {}; missing {}, unexpected {}",
+				key, mismatch.get("expected"), mismatch.get("actual"), missing, unexpected);
+	}
+
+	private static long toLong(Object number) {
+		return number == null ? 0 : ((Number) number).longValue();
+	}
+
+}
@@ -0,0 +1,279 @@
+package com.mgackowski.mongoutil;
+
+import java.nio.file.Path;
+
+/**
+ * Tunes how a {@link Denormalizer} executes a model, independently of what
+ * the model describes. All settings have defaults, so only the ones to be
+ * changed need to be chained, e.g.:<br>
+ * <code>new DenormalizerConfig().batchSize(1000).writerThreads(2)</code>
+ * <p>
+ * Each join is executed as a pipeline of three stages connected by bounded
+ * queues: readers scan the source collection in batches, transformers build
+ * the references or embedded documents, and writers apply them to the target
+ * collection. When writers fall behind, the queues fill up and the readers
+ * wait, so memory use is bounded by the queue capacities and batch size.
+ */
+public class DenormalizerConfig {
+
+	private int batchSize = 500;
+	private int queueCapacity = 8;
+	private int readerThreads = 1;
+	private int transformerThreads = 1;
+	private int writerThreads = 1;
+	private int reportIntervalSeconds = 10;
+	private int lookupCacheSize = 100_000;
+	private int profileTopK = 0;
+	private int profileSampleEvery = 1000;
+	private Path profileReport;
+	private boolean idempotentWrites = false;
+	private int maxRetries = 5;
+	private long retryBackoffMillis = 100;
+	private Sink sink;
+
+	public DenormalizerConfig() {}
+
+	/**
+	 * Copies all settings of another config, sharing its sink.
+	 */
+	DenormalizerConfig(DenormalizerConfig other) {
+		this.batchSize = other.batchSize;
+		this.queueCapacity = other.queueCapacity;
+		this.readerThreads = other.readerThreads;
+		this.transformerThreads = other.transformerThreads;
+		this.writerThreads = other.writerThreads;
+		this.reportIntervalSeconds = other.reportIntervalSeconds;
+		this.lookupCacheSize = other.lookupCacheSize;
+		this.profileTopK = other.profileTopK;
+		this.profileSampleEvery = other.profileSampleEvery;
+		this.profileReport = other.profileReport;
+		this.idempotentWrites = other.idempotentWrites;
+		this.maxRetries = other.maxRetries;
+		this.retryBackoffMillis = other.retryBackoffMillis;
+		this.sink = other.sink;
+	}
+
+	/**
+	 * @param batchSize number of source documents read, transformed and
+	 * written together (default 500)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DenormalizerConfig batchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * @param queueCapacity number of batches each queue between two stages
+	 * can hold before the earlier stage waits (default 8)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DenormalizerConfig queueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+		return this;
+	}
+
+	/**
+	 * Sets the number of threads of the reader stage. Readers work on
+	 * separate partitions of the source collection (see {@link ShardTopology}),
+	 * so more threads than partitions are never started.
+	 * <p>
+	 * With more than one thread in any stage, the order of elements in the
+	 * target arrays is no longer the order in which source documents are read.
+	 * @param readerThreads number of threads (default 1)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DenormalizerConfig readerThreads(int readerThreads) {
+		this.readerThreads = readerThreads;
+		return this;
+	}
+
+	/**
+	 * @param transformerThreads number of threads of the transformer stage
+	 * (default 1)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 * @see #readerThreads(int)
+	 */
+	public DenormalizerConfig transformerThreads(int transformerThreads) {
+		this.transformerThreads = transformerThreads;
+		return this;
+	}
+
+	/**
+	 * @param writerThreads number of threads of the writer stage (default 1)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 * @see #readerThreads(int)
+	 */
+	public DenormalizerConfig writerThreads(int writerThreads) {
+		this.writerThreads = writerThreads;
+		return this;
+	}
+
+	/**
+	 * @param reportIntervalSeconds how often the progress and queue depths of
+	 * a running join are logged (default 10)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DenormalizerConfig reportIntervalSeconds(int reportIntervalSeconds) {
+		this.reportIntervalSeconds = reportIntervalSeconds;
+		return this;
+	}
+
+	/**
+	 * @param lookupCacheSize maximum number of documents per join kept in the
+	 * cache of documents looked up in a third collection (default 100,000)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 * @see com.mgackowski.mongoutil.model.JoinModel#lookup(String, String...)
+	 */
+	public DenormalizerConfig lookupCacheSize(int lookupCacheSize) {
+		this.lookupCacheSize = lookupCacheSize;
+		return this;
+	}
+
+	/**
+	 * Configures the profiler that keeps the slowest target updates of each
+	 * join and reports them, with their query plans, when the join completes.
+	 * Sampled updates are executed on their own instead of in a bulk write,
+	 * so that they can be timed individually. The profiler is disabled by
+	 * default.
+	 * @param topK number of slowest updates kept per join, e.g. 10 (default
+	 * 0, which disables the profiler)
+	 * @param sampleEvery time one in this many updates (default 1000)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DenormalizerConfig profile(int topK, int sampleEvery) {
+		this.profileTopK = topK;
+		this.profileSampleEvery = sampleEvery;
+		return this;
+	}
+
+	/**
+	 * @param profileReport file to which the profiler appends the slowest
+	 * updates of each join as JSON lines, in addition to logging them
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DenormalizerConfig profileReport(Path profileReport) {
+		this.profileReport = profileReport;
+		return this;
+	}
+
+	/**
+	 * Makes writes to target arrays safe to repeat: references are added with
+	 * {@code $addToSet} instead of {@code $push}, and embedded documents
+	 * replace any element with the same {@code _id} (pulled and pushed again in
+	 * two consecutive updates). Repeating a run, or a part of it, then leaves
+	 * the arrays as a single run would, and failed batches can be retried (see
+	 * {@link #retries(int, long)}).
+	 * <p>
+	 * Source documents with the same reference are then stored in the array
+	 * only once.
+	 * @param idempotentWrites true to enable (default false)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DenormalizerConfig idempotentWrites(boolean idempotentWrites) {
+		this.idempotentWrites = idempotentWrites;
+		return this;
+	}
+
+	/**
+	 * Sets how often a batch of writes that failed with a transient error,
+	 * e.g. during a replica set election, is repeated before the join fails.
+	 * Only applies to {@link #idempotentWrites(boolean) idempotent writes};
+	 * otherwise the first error fails the join.
+	 * @param maxRetries number of retries per batch (default 5)
+	 * @param retryBackoffMillis wait before the first retry, doubled for each
+	 * further one (default 100)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DenormalizerConfig retries(int maxRetries, long retryBackoffMillis) {
+		this.maxRetries = maxRetries;
+		this.retryBackoffMillis = retryBackoffMillis;
+		return this;
+	}
+
+	/**
+	 * Streams the computed array elements to a sink instead of adding them to
+	 * the target collections, which are then left untouched. Elements are
+	 * passed to the sink in batches (see {@link #batchSize(int)}).
+	 * @param sink e.g. a {@link JsonLinesSink}; null to write to the target
+	 * collections (default)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DenormalizerConfig sink(Sink sink) {
+		this.sink = sink;
+		return this;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public int getReaderThreads() {
+		return readerThreads;
+	}
+
+	public int getTransformerThreads() {
+		return transformerThreads;
+	}
+
+	public int getWriterThreads() {
+		return writerThreads;
+	}
+
+	public int getReportIntervalSeconds() {
+		return reportIntervalSeconds;
+	}
+
+	public int getLookupCacheSize() {
+		return lookupCacheSize;
+	}
+
+	public int getProfileTopK() {
+		return profileTopK;
+	}
+
+	public int getProfileSampleEvery() {
+		return profileSampleEvery;
+	}
+
+	public Path getProfileReport() {
+		return profileReport;
+	}
+
+	public boolean isIdempotentWrites() {
+		return idempotentWrites;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public long getRetryBackoffMillis() {
+		return retryBackoffMillis;
+	}
+
+	public Sink getSink() {
+		return sink;
+	}
+
+	@Override
+	public String toString() {
+		return "DenormalizerConfig [batchSize=" + batchSize +
+				", queueCapacity=" + queueCapacity +
+				", readerThreads=" + readerThreads +
+				", transformerThreads=" + transformerThreads +
+				", writerThreads=" + writerThreads +
+				", lookupCacheSize=" + lookupCacheSize +
+				", profileTopK=" + profileTopK +
+				", profileSampleEvery=" + profileSampleEvery +
+				", idempotentWrites=" + idempotentWrites +
+				", maxRetries=" + maxRetries +
+				", retryBackoffMillis=" + retryBackoffMillis +
+				", sink=" + (sink == null ? "target collections" : sink.getClass().getSimpleName()) + "]";
+	}
+
+}
@@ -1,5 +1,6 @@
 package com.mgackowski.mongoutil;
 
+import com.mongodb.MongoClient;
 import com.mongodb.client.MongoDatabase;
 
 /**
@@ -19,4 +20,106 @@ public class DenormalizerFactory {
 		return new DefaultDenormalizer(db);
 	}
 
+	/**
+	 * Returns a new Denormalizer object which will act on a pre-existing
+	 * MongoDB Database object with custom execution settings.
+	 * @param db the MongoDB Java driver database object
+	 * @param config settings for the execution of each join
+	 */
+	public static Denormalizer getDenormalizer(MongoDatabase db, DenormalizerConfig config) {
+		return new DefaultDenormalizer(db, ShardTopology.unsharded(), config);
+	}
+
+	/**
+	 * Returns a new Denormalizer object which will act on a database of the
+	 * given client. If the client is connected to a sharded cluster, scans of
+	 * source collections are split per shard and updates of target
+	 * collections include the target's shard key wherever possible.
+	 * @param client the MongoDB Java driver client
+	 * @param dbName the name of the database
+	 */
+	public static Denormalizer getDenormalizer(MongoClient client, String dbName) {
+		return getDenormalizer(client, dbName, new DenormalizerConfig());
+	}
+
+	/**
+	 * Returns a new Denormalizer object which will act on a database of the
+	 * given client, as {@link #getDenormalizer(MongoClient, String)} does,
+	 * with custom execution settings.
+	 * @param client the MongoDB Java driver client
+	 * @param dbName the name of the database
+	 * @param config settings for the execution of each join
+	 */
+	public static Denormalizer getDenormalizer(MongoClient client, String dbName,
+			DenormalizerConfig config) {
+		return new DefaultDenormalizer(client.getDatabase(dbName),
+				ShardTopology.of(client), config);
+	}
+
+	/**
+	 * Returns a new Denormalizer object which will merge-join each source
+	 * collection into its target by scanning both in the order of their join
+	 * key indexes, with memory bounded by a batch whatever the size of the
+	 * collections.
+	 * @param db the MongoDB Java driver database object
+	 * @see MergeJoinDenormalizer
+	 */
+	public static Denormalizer getMergeJoinDenormalizer(MongoDatabase db) {
+		return new MergeJoinDenormalizer(db);
+	}
+
+	/**
+	 * Returns a new merge-join Denormalizer object, as
+	 * {@link #getMergeJoinDenormalizer(MongoDatabase)} does, with custom
+	 * execution settings.
+	 * @param db the MongoDB Java driver database object
+	 * @param config settings for the execution of each join
+	 */
+	public static Denormalizer getMergeJoinDenormalizer(MongoDatabase db, DenormalizerConfig config) {
+		return new MergeJoinDenormalizer(db, ShardTopology.unsharded(), config);
+	}
+
+	/**
+	 * Returns a new merge-join Denormalizer object which will act on a
+	 * database of the given client, routing updates of sharded target
+	 * collections by their shard key.
+	 * @param client the MongoDB Java driver client
+	 * @param dbName the name of the database
+	 * @param config settings for the execution of each join
+	 */
+	public static Denormalizer getMergeJoinDenormalizer(MongoClient client, String dbName,
+			DenormalizerConfig config) {
+		return new MergeJoinDenormalizer(client.getDatabase(dbName),
+				ShardTopology.of(client), config);
+	}
+
+	/**
+	 * Returns a new Verifier object which will check a completed
+	 * denormalization in a pre-existing MongoDB Database object.
+	 * @param db the MongoDB Java driver database object
+	 */
+	public static Verifier getVerifier(MongoDatabase db) {
+		return new DefaultVerifier(db);
+	}
+
+	/**
+	 * Returns a new Verifier object, as {@link #getVerifier(MongoDatabase)}
+	 * does, for a denormalization which ran with the given settings, e.g.
+	 * with idempotent writes, which add each reference to an array once.
+	 * @param db the MongoDB Java driver database object
+	 * @param config the settings the denormalization ran with
+	 */
+	public static Verifier getVerifier(MongoDatabase db, DenormalizerConfig config) {
+		return new DefaultVerifier(db, config);
+	}
+
+	/**
+	 * Returns a new Renormalizer object which will act on a pre-existing
+	 * MongoDB Database object.
+	 * @param db the MongoDB Java driver database object
+	 */
+	public static Renormalizer getRenormalizer(MongoDatabase db) {
+		return new DefaultRenormalizer(db);
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,103 @@
+package com.mgackowski.mongoutil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.bson.Document;
+
+import com.mgackowski.mongoutil.model.JoinModel;
+
+/**
+ * A {@link Sink} writing one record per update to a file, through a buffer
+ * that is written to the file channel whenever it is full and when a join
+ * completes, so memory use does not grow with the join. Each record holds the
+ * target collection, array name, the target field and value identifying the
+ * document, the elements and whether they are the whole array, e.g.:<br>
+ * <code>{"collection" : "authors", "array" : "books", "keyField" : "_id", "key" : 2, "elements" : ["B", "C"], "complete" : true}</code>
+ * <p>
+ * Complete records, as computed by the {@link MergeJoinDenormalizer}, hold
+ * the whole array of a target document that exists and matches the target
+ * filter, exactly as it would be {@code $set} in the target collection.
+ * Other records hold the elements of some source documents, to be appended
+ * to the array as with {@code $push}; a key may then have several records,
+ * and since keys are not looked up in the target collection, they are also
+ * written for keys that match no target document, or only ones excluded by
+ * the target filter, which a run into the target collection would skip.
+ * <p>
+ * Records of all joins go to the same file. Close the sink once the
+ * Denormalizer is done.
+ */
+public abstract class FileSink implements Sink {
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	/**
+	 * @param file the file to write; created, or truncated if it exists
+	 * @throws IOException if the file cannot be opened for writing
+	 */
+	protected FileSink(Path file) throws IOException {
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * @return the record serialized in the format of the file
+	 */
+	protected abstract byte[] encode(Document record);
+
+	@Override
+	public synchronized void write(JoinModel join, List<TargetUpdate> updates) throws IOException {
+		for (TargetUpdate update : updates) {
+			put(encode(new Document("collection", join.getTargetCollection())
+					.append("array", join.getTargetNewArrayName())
+					.append("keyField", join.getTargetLinkColumn())
+					.append("key", update.getKey())
+					.append("elements", update.getElements())
+					.append("complete", update.isComplete())));
+		}
+	}
+
+	@Override
+	public synchronized void completed(JoinModel join) throws IOException {
+		drain();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			drain();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void put(byte[] bytes) throws IOException {
+		if (bytes.length > buffer.remaining()) {
+			drain();
+		}
+		if (bytes.length > buffer.capacity()) {
+			ByteBuffer large = ByteBuffer.wrap(bytes);
+			while (large.hasRemaining()) {
+				channel.write(large);
+			}
+		} else {
+			buffer.put(bytes);
+		}
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+}
@@ -0,0 +1,108 @@
+package com.mgackowski.mongoutil;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mgackowski.mongoutil.model.JoinModel;
+
+/**
+ * Counters of a single join being executed by a {@link JoinPipeline}. Safe to
+ * update from the threads of every stage and to log from any thread.
+ */
+class JoinMetrics {
+
+	private final JoinModel join;
+	private final long started = System.nanoTime();
+
+	private final AtomicLong read = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong giveUps = new AtomicLong();
+
+	private int readers;
+	private int transformers;
+	private int writers;
+	private BlockingQueue<?> readQueue;
+	private BlockingQueue<?> writeQueue;
+	private LookupCache lookupCache;
+
+	JoinMetrics(JoinModel join) {
+		this.join = join;
+	}
+
+	void stages(int readers, int transformers, int writers,
+			BlockingQueue<?> readQueue, BlockingQueue<?> writeQueue) {
+		this.readers = readers;
+		this.transformers = transformers;
+		this.writers = writers;
+		this.readQueue = readQueue;
+		this.writeQueue = writeQueue;
+	}
+
+	void lookupCache(LookupCache lookupCache) {
+		this.lookupCache = lookupCache;
+	}
+
+	void read(int documents) {
+		read.addAndGet(documents);
+	}
+
+	void written(int updates) {
+		written.addAndGet(updates);
+		batches.incrementAndGet();
+	}
+
+	void retried() {
+		retries.incrementAndGet();
+	}
+
+	void gaveUp() {
+		giveUps.incrementAndGet();
+	}
+
+	long getRead() {
+		return read.get();
+	}
+
+	long getWritten() {
+		return written.get();
+	}
+
+	long getRetries() {
+		return retries.get();
+	}
+
+	long getGiveUps() {
+		return giveUps.get();
+	}
+
+	long getElapsedMillis() {
+		return (System.nanoTime() - started) / 1_000_000;
+	}
+
+	@Override
+	public String toString() {
+		long elapsed = Math.max(getElapsedMillis(), 1);
+		StringBuilder verbose = new StringBuilder(
+				"JoinMetrics [array=" + join.getTargetCollection() + "." + join.getTargetNewArrayName() +
+				", read=" + read.get() +
+				", written=" + written.get() +
+				", batches=" + batches.get() +
+				", retries=" + retries.get() +
+				", giveUps=" + giveUps.get() +
+				", elapsedMs=" + elapsed +
+				", docsPerSec=" + read.get() * 1000 / elapsed);
+		if (readQueue != null) {
+			verbose.append(", threads=" + readers + "/" + transformers + "/" + writers +
+					", readQueue=" + readQueue.size() + "/" + (readQueue.size() + readQueue.remainingCapacity()) +
+					", writeQueue=" + writeQueue.size() + "/" + (writeQueue.size() + writeQueue.remainingCapacity()));
+		}
+		if (lookupCache != null) {
+			verbose.append(", " + lookupCache);
+		}
+		verbose.append("]");
+		return verbose.toString();
+	}
+
+}
@@ -0,0 +1,276 @@
+package com.mgackowski.mongoutil;
+
+import static com.mongodb.client.model.Filters.and;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Executes a single join as three stages connected by bounded queues, so that
+ * reading the next source batch, building references and waiting on target
+ * writes overlap instead of running one after another:
+ * <ol><li>readers scan partitions of the source collection into batches,
+ * </li><li>transformers turn each batch into target updates,
+ * </li><li>writers pass the updates to the {@link Sink}, by default a
+ * {@link MongoSink} applying them as ordered bulk writes.</li></ol>
+ * A failure in any stage stops all stages.
+ * @see DenormalizerConfig
+ */
+class JoinPipeline {
+
+	private static final Logger LOG = LogManager.getLogger(JoinPipeline.class);
+
+	/* Markers passed down the queues once a stage has no more work. */
+	private static final List<Document> END_OF_SOURCE = new ArrayList<>();
+	private static final List<TargetUpdate> END_OF_UPDATES = new ArrayList<>();
+
+	private final MongoCollection<Document> sourceColl;
+	private final JoinModel join;
+	private final Map<String, String> routing;
+	private final DenormalizerConfig config;
+	private final JoinMetrics metrics;
+	private final LookupCache lookupCache;
+	private final Sink sink;
+
+	private final BlockingQueue<List<Document>> readQueue;
+	private final BlockingQueue<List<TargetUpdate>> writeQueue;
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+	private ExecutorService executor;
+
+	/**
+	 * @param db the database of all collections in the join
+	 * @param sourceCollName name of the source collection
+	 * @param join the join to execute
+	 * @param topology the sharding metadata used to route target updates
+	 * @param config settings for the execution of the join
+	 */
+	JoinPipeline(MongoDatabase db, String sourceCollName, JoinModel join,
+			ShardTopology topology, DenormalizerConfig config) {
+		this.sourceColl = db.getCollection(sourceCollName);
+		this.join = join;
+		this.routing = topology.sourceRouting(
+				db.getName() + "." + join.getTargetCollection(), join);
+		this.config = config;
+		this.metrics = new JoinMetrics(join);
+		this.lookupCache = join.getLookupCollection() == null ? null
+				: new LookupCache(db.getCollection(join.getLookupCollection()),
+						join.getLookupFields(), config.getLookupCacheSize());
+		metrics.lookupCache(lookupCache);
+		this.sink = config.getSink() != null ? config.getSink()
+				: new MongoSink(db, join, config, metrics);
+		this.readQueue = new ArrayBlockingQueue<>(config.getQueueCapacity());
+		this.writeQueue = new ArrayBlockingQueue<>(config.getQueueCapacity());
+	}
+
+	/**
+	 * Runs all stages until every partition has been read and every update
+	 * written, logging progress at the configured interval.
+	 * @param partitions filters which together match every source document
+	 * to process exactly once
+	 * @return true if the join completed, false if any stage failed
+	 */
+	boolean run(List<Bson> partitions) {
+
+		BlockingQueue<Bson> pending = new LinkedBlockingQueue<>(partitions);
+		int readers = Math.max(1, Math.min(config.getReaderThreads(), partitions.size()));
+		int transformers = Math.max(1, config.getTransformerThreads());
+		int writers = Math.max(1, config.getWriterThreads());
+		metrics.stages(readers, transformers, writers, readQueue, writeQueue);
+
+		AtomicInteger activeReaders = new AtomicInteger(readers);
+		AtomicInteger activeTransformers = new AtomicInteger(transformers);
+
+		executor = Executors.newFixedThreadPool(readers + transformers + writers);
+		for (int i = 0; i < readers; i++) {
+			executor.execute(stage(() -> read(pending, activeReaders, transformers)));
+		}
+		for (int i = 0; i < transformers; i++) {
+			executor.execute(stage(() -> transform(activeTransformers, writers)));
+		}
+		for (int i = 0; i < writers; i++) {
+			executor.execute(stage(this::write));
+		}
+		executor.shutdown();
+
+		try {
+			while (!executor.awaitTermination(config.getReportIntervalSeconds(), TimeUnit.SECONDS)) {
+				LOG.info("   {}", metrics);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail(e);
+		}
+
+		if (failure.get() != null) {
+			LOG.error("Join failed after {}; join={}", metrics, join, failure.get());
+			return false;
+		}
+		LOG.info("   {}", metrics);
+		try {
+			sink.completed(join);
+		} catch (IOException e) {
+			LOG.error("Join failed to complete its output; join={}", join, e);
+			return false;
+		}
+		return true;
+	}
+
+	JoinMetrics getMetrics() {
+		return metrics;
+	}
+
+	private void read(BlockingQueue<Bson> pending, AtomicInteger activeReaders,
+			int transformers) throws InterruptedException {
+
+		int batchSize = config.getBatchSize();
+		Bson partition;
+		while ((partition = pending.poll()) != null) {
+			try (MongoCursor<Document> links = sourceColl
+					.find(and(join.sourceQuery(), partition))
+					.batchSize(batchSize)
+					.iterator()) {
+				List<Document> batch = new ArrayList<>(batchSize);
+				while (links.hasNext()) {
+					batch.add(links.next());
+					if (batch.size() == batchSize) {
+						metrics.read(batch.size());
+						readQueue.put(batch);
+						batch = new ArrayList<>(batchSize);
+					}
+				}
+				if (!batch.isEmpty()) {
+					metrics.read(batch.size());
+					readQueue.put(batch);
+				}
+			}
+		}
+		if (activeReaders.decrementAndGet() == 0) {
+			for (int i = 0; i < transformers; i++) {
+				readQueue.put(END_OF_SOURCE);
+			}
+		}
+	}
+
+	private void transform(AtomicInteger activeTransformers, int writers)
+			throws InterruptedException {
+
+		List<Document> batch;
+		while ((batch = readQueue.take()) != END_OF_SOURCE) {
+			Map<Object, Document> lookedUp = lookupCache == null ? Collections.emptyMap()
+					: lookupCache.getAll(LookupCache.idsOf(batch, join.getSourceLinkColumn()));
+			List<TargetUpdate> updates = new ArrayList<>(batch.size());
+			for (Document doc : batch) {
+				updates.add(toUpdate(doc, lookedUp));
+			}
+			writeQueue.put(updates);
+		}
+		if (activeTransformers.decrementAndGet() == 0) {
+			for (int i = 0; i < writers; i++) {
+				writeQueue.put(END_OF_UPDATES);
+			}
+		}
+	}
+
+	private void write() throws InterruptedException, IOException {
+
+		List<TargetUpdate> updates;
+		while ((updates = writeQueue.take()) != END_OF_UPDATES) {
+			sink.write(join, updates);
+			metrics.written(updates.size());
+		}
+	}
+
+	/**
+	 * Builds the update adding a reference to (or an embedded copy of) a
+	 * source document to the array of the target documents it references.
+	 */
+	private TargetUpdate toUpdate(Document doc, Map<Object, Document> lookedUp) {
+
+		String sourceForeignKeyName = join.getSourceForeignKeyColumn();
+		Object sourceForeignKeyValue = join.coerceKey(doc.get(sourceForeignKeyName));
+		LOG.debug("   Processing {} : {}", sourceForeignKeyName, sourceForeignKeyValue);
+
+		Bson targetFilter = ShardTopology.routed(
+				join.targetQuery(sourceForeignKeyValue), routing, doc);
+
+		return new TargetUpdate(sourceForeignKeyValue, targetFilter,
+				Collections.singletonList(element(join, doc, lookedUp)));
+	}
+
+	/**
+	 * @return the reference to a source document, or its embedded copy if the
+	 * join embeds fields, as stored in the target array
+	 * @param lookedUp fields looked up in the third collection by reference
+	 */
+	static Object element(JoinModel join, Document doc, Map<Object, Document> lookedUp) {
+		Object reference = doc.get(join.getSourceLinkColumn());
+		if (!join.isEmbedding()) {
+			return reference;
+		}
+		Document referenceObject = new Document("_id", reference);
+		for (String field : join.getEmbeddedFields()) {
+			Object value = doc.get(field);
+			if (value == null) continue;
+			referenceObject.append(field, value);
+		}
+		Document lookup = lookedUp.get(reference);
+		if (lookup != null) {
+			lookup.forEach(referenceObject::putIfAbsent);
+		}
+		return referenceObject;
+	}
+
+	/**
+	 * Runs a stage, failing the join if it throws anything, so that no sibling
+	 * stage is left waiting on a queue the failed stage no longer serves.
+	 * Stages interrupted by a failure elsewhere are not recorded as failing.
+	 */
+	private Runnable stage(Stage stage) {
+		return () -> {
+			try {
+				stage.run();
+			} catch (Throwable e) {
+				if (e instanceof InterruptedException) {
+					Thread.currentThread().interrupt();
+				}
+				fail(e);
+			}
+		};
+	}
+
+	/**
+	 * Records the first failure and cancels all stages.
+	 */
+	private void fail(Throwable e) {
+		if (failure.compareAndSet(null, e)) {
+			executor.shutdownNow();
+		}
+	}
+
+	@FunctionalInterface
+	private interface Stage {
+		void run() throws InterruptedException, IOException;
+	}
+
+}
@@ -0,0 +1,34 @@
+package com.mgackowski.mongoutil;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+/**
+ * A {@link FileSink} writing each record as a line of relaxed extended
+ * JSON, e.g. for bulk loading into a search index.
+ */
+public class JsonLinesSink extends FileSink {
+
+	private static final JsonWriterSettings SETTINGS = JsonWriterSettings.builder()
+			.outputMode(JsonMode.RELAXED)
+			.build();
+
+	/**
+	 * @param file the file to write; created, or truncated if it exists
+	 * @throws IOException if the file cannot be opened for writing
+	 */
+	public JsonLinesSink(Path file) throws IOException {
+		super(file);
+	}
+
+	@Override
+	protected byte[] encode(Document record) {
+		return (record.toJson(SETTINGS) + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+}
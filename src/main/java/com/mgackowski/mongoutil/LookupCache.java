@@ -0,0 +1,139 @@
+package com.mgackowski.mongoutil;
+
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.include;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+
+import com.mgackowski.mongoutil.model.KeyTypes;
+import com.mongodb.client.MongoCollection;
+
+/**
+ * A size-bounded, least-recently-used cache of documents looked up by
+ * {@code _id} in the collection referenced by a join. Documents missing from
+ * the cache are fetched with a single {@code $in} query per batch, and
+ * identifiers that do not exist are cached too, so that popular identifiers
+ * repeated across many source documents are only fetched once.
+ */
+class LookupCache {
+
+	private static final Document NOT_FOUND = new Document();
+
+	private final MongoCollection<Document> collection;
+	private final List<String> fields;
+	private final Map<Object, Document> entries;
+
+	private long hits;
+	private long misses;
+
+	LookupCache(MongoCollection<Document> collection, List<String> fields, int maxSize) {
+		this.collection = collection;
+		this.fields = fields;
+		this.entries = new LinkedHashMap<Object, Document>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Object, Document> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the looked-up fields of the documents with the given
+	 * identifiers, fetching those not in the cache in one query. The cache is
+	 * only locked while it is read and updated, not during the query, so
+	 * concurrent batches missing the same identifier may both fetch it.
+	 * <p>
+	 * Every identifier counts as a hit or a miss: a miss the first time an
+	 * uncached identifier occurs in the batch, a hit when it is cached or
+	 * repeated within the batch.
+	 * @param ids identifiers as found in source documents
+	 * @return a map from each identifier to the looked-up fields of its
+	 * document, without entries for identifiers that do not exist
+	 */
+	Map<Object, Document> getAll(Collection<Object> ids) {
+
+		Map<Object, Document> found = new HashMap<>();
+		Map<Object, Object> missing = new LinkedHashMap<>();
+		List<Object> unresolved = new ArrayList<>();
+		synchronized (this) {
+			for (Object id : ids) {
+				Object key = KeyTypes.normalize(id);
+				Document cached = entries.get(key);
+				if (cached != null) {
+					hits++;
+					if (cached != NOT_FOUND) found.put(id, cached);
+					continue;
+				}
+				if (missing.putIfAbsent(key, id) == null) {
+					misses++;
+				} else {
+					hits++;
+				}
+				unresolved.add(id);
+			}
+		}
+		if (missing.isEmpty()) {
+			return found;
+		}
+
+		Map<Object, Document> fetched = new HashMap<>();
+		for (Document doc : collection.find(in("_id", missing.values())).projection(include(fields))) {
+			Object key = KeyTypes.normalize(doc.remove("_id"));
+			fetched.put(key, doc);
+		}
+		for (Object id : unresolved) {
+			Document doc = fetched.get(KeyTypes.normalize(id));
+			if (doc != null) found.put(id, doc);
+		}
+		synchronized (this) {
+			for (Object key : missing.keySet()) {
+				entries.put(key, fetched.getOrDefault(key, NOT_FOUND));
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return identifiers of the given documents' field, in order, for
+	 * passing to {@link #getAll(Collection)}
+	 */
+	static List<Object> idsOf(List<Document> docs, String field) {
+		List<Object> ids = new ArrayList<>(docs.size());
+		for (Document doc : docs) {
+			Object id = doc.get(field);
+			if (id != null) ids.add(id);
+		}
+		return ids;
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		long lookups = hits + misses;
+		return "LookupCache [collection=" + collection.getNamespace().getCollectionName() +
+				", size=" + entries.size() +
+				", hits=" + hits +
+				", misses=" + misses +
+				", hitRate=" + (lookups == 0 ? 0 : hits * 100 / lookups) + "%]";
+	}
+
+}
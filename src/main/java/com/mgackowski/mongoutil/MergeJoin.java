@@ -0,0 +1,292 @@
+package com.mgackowski.mongoutil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.conversions.Bson;
+
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mgackowski.mongoutil.model.KeyTypes;
+import com.mongodb.MongoClient;
+
+/**
+ * Executes a single join by merging two streams sorted in BSON order: source
+ * documents by their foreign key and target documents by their key. Source
+ * documents sharing a foreign key are grouped and written as one complete
+ * array to the matching target documents, so memory holds a batch of groups
+ * and never the whole key space. A group is held whole, however many source
+ * documents share its key: groups of {@value #LARGE_GROUP} documents or more
+ * are logged, and fail the join if their array exceeds the maximum document
+ * size.
+ * <p>
+ * Source keys without a matching target document are counted as orphans and
+ * reported once the streams are merged; target documents without any source
+ * document are left untouched.
+ * @see MergeJoinDenormalizer
+ */
+class MergeJoin {
+
+	private static final Logger LOG = LogManager.getLogger(MergeJoin.class);
+
+	private static final int ORPHAN_SAMPLE_SIZE = 10;
+	/* Groups of at least this many source documents are reported and measured. */
+	static final int LARGE_GROUP = 10_000;
+	/* Maximum size of a BSON document, which the array must fit in. */
+	static final int MAX_DOCUMENT_BYTES = 16 * 1024 * 1024;
+	private static final Codec<Document> CODEC =
+			MongoClient.getDefaultCodecRegistry().get(Document.class);
+
+	private final JoinModel join;
+	private final Map<String, String> routing = new LinkedHashMap<>();
+	private final LookupCache lookupCache;
+	private final Sink sink;
+	private final DenormalizerConfig config;
+	private final JoinMetrics metrics;
+
+	private long orphanKeys;
+	private long orphanDocuments;
+	private final List<Object> orphanSample = new ArrayList<>(ORPHAN_SAMPLE_SIZE);
+
+	/**
+	 * @param join the join to execute
+	 * @param routingFields fields of the target's shard key to route updates
+	 * by, taken from the matching target document
+	 * @param lookupCache cache of the looked-up collection, or null if the
+	 * join looks up no fields
+	 * @param sink the sink receiving the complete arrays
+	 * @param config settings for the execution of the join
+	 * @param metrics counters of the join, shared with the sink
+	 */
+	MergeJoin(JoinModel join, List<String> routingFields, LookupCache lookupCache,
+			Sink sink, DenormalizerConfig config, JoinMetrics metrics) {
+		this.join = join;
+		routingFields.forEach(field -> routing.put(field, field));
+		this.lookupCache = lookupCache;
+		this.sink = sink;
+		this.config = config;
+		this.metrics = metrics;
+		metrics.lookupCache(lookupCache);
+	}
+
+	/**
+	 * Merges the streams and writes a complete array for every target key
+	 * referenced by at least one source document, logging progress at the
+	 * configured interval.
+	 * @param sources source documents sorted by the foreign key
+	 * @param targets target documents sorted by the target key, holding at
+	 * least the key and routing fields
+	 * @throws IOException if the sink fails to write
+	 * @throws IllegalStateException if a key is an array, or a stream is not
+	 * sorted
+	 */
+	void run(Iterator<Document> sources, Iterator<Document> targets) throws IOException {
+
+		String foreignKey = join.getSourceForeignKeyColumn();
+		String targetKey = join.getTargetLinkColumn();
+		int batchSize = config.getBatchSize();
+		long reportIntervalNanos = config.getReportIntervalSeconds() * 1_000_000_000L;
+		long nextReport = System.nanoTime() + reportIntervalNanos;
+
+		Peeking source = new Peeking(sources, foreignKey);
+		Peeking target = new Peeking(targets, targetKey);
+		List<Group> batch = new ArrayList<>();
+		int batchDocuments = 0;
+
+		while (source.hasNext()) {
+			Object key = source.key();
+			List<Document> docs = source.takeAll(key);
+			metrics.read(docs.size());
+
+			while (target.hasNext() && KeyTypes.compare(target.key(), key) < 0) {
+				target.next();
+			}
+			if (!target.hasNext() || KeyTypes.compare(target.key(), key) > 0) {
+				orphan(key, docs.size());
+				continue;
+			}
+			batch.add(new Group(key, docs, target.takeAll(key)));
+			batchDocuments += docs.size();
+
+			if (batchDocuments >= batchSize) {
+				write(batch);
+				batch = new ArrayList<>();
+				batchDocuments = 0;
+			}
+			if (System.nanoTime() - nextReport > 0) {
+				LOG.info("   {}", metrics);
+				nextReport = System.nanoTime() + reportIntervalNanos;
+			}
+		}
+		if (!batch.isEmpty()) {
+			write(batch);
+		}
+
+		LOG.info("   {}", metrics);
+		if (orphanKeys > 0) {
+			LOG.warn("{} source documents with {} distinct values of {} match no target in {}, "
+					+ "e.g. {}", orphanDocuments, orphanKeys, foreignKey,
+					join.getTargetCollection(), orphanSample);
+		}
+	}
+
+	JoinMetrics getMetrics() {
+		return metrics;
+	}
+
+	long getOrphanKeys() {
+		return orphanKeys;
+	}
+
+	long getOrphanDocuments() {
+		return orphanDocuments;
+	}
+
+	List<Object> getOrphanSample() {
+		return Collections.unmodifiableList(orphanSample);
+	}
+
+	private void orphan(Object key, int documents) {
+		orphanKeys++;
+		orphanDocuments += documents;
+		if (orphanSample.size() < ORPHAN_SAMPLE_SIZE) {
+			orphanSample.add(key);
+		}
+	}
+
+	/**
+	 * Builds one complete update per group, looking up fields of the whole
+	 * batch at once, and passes them to the sink.
+	 */
+	private void write(List<Group> batch) throws IOException {
+
+		Map<Object, Document> lookedUp = Collections.emptyMap();
+		if (lookupCache != null) {
+			List<Object> ids = new ArrayList<>();
+			for (Group group : batch) {
+				ids.addAll(LookupCache.idsOf(group.sources, join.getSourceLinkColumn()));
+			}
+			lookedUp = lookupCache.getAll(ids);
+		}
+
+		List<TargetUpdate> updates = new ArrayList<>(batch.size());
+		for (Group group : batch) {
+			List<Object> elements = new ArrayList<>(group.sources.size());
+			for (Document doc : group.sources) {
+				elements.add(JoinPipeline.element(join, doc, lookedUp));
+			}
+			if (elements.size() >= LARGE_GROUP) {
+				checkSize(group.key, elements);
+			}
+			/* target documents sharing a key may live on different shards */
+			Bson filter = group.targets.size() == 1
+					? ShardTopology.routed(join.targetQuery(group.key), routing, group.targets.get(0))
+					: join.targetQuery(group.key);
+			updates.add(new TargetUpdate(group.key, filter, elements, true));
+		}
+		sink.write(join, updates);
+		metrics.written(updates.size());
+	}
+
+	/**
+	 * Reports a group held in memory as a whole, and fails the join before
+	 * anything is written for it if its array cannot fit in a document.
+	 * @throws IllegalStateException if the array is larger than a document
+	 */
+	private void checkSize(Object key, List<Object> elements) {
+		Document array = new Document(join.getTargetNewArrayName(), elements);
+		int bytes = new RawBsonDocument(array, CODEC).getByteBuffer().remaining();
+		LOG.warn("{} = {} is referenced by {} source documents, held in memory at once; "
+				+ "their array takes {} bytes", join.getSourceForeignKeyColumn(), key,
+				elements.size(), bytes);
+		if (bytes > MAX_DOCUMENT_BYTES) {
+			throw new IllegalStateException("The array of " + join.getTargetCollection() + " "
+					+ key + " would take " + bytes + " bytes, over the maximum document size; "
+					+ "narrow the join with where() or embed fewer fields");
+		}
+	}
+
+	/**
+	 * Source documents sharing a foreign key, and the target documents with
+	 * that key.
+	 */
+	private static class Group {
+		final Object key;
+		final List<Document> sources;
+		final List<Document> targets;
+
+		Group(Object key, List<Document> sources, List<Document> targets) {
+			this.key = key;
+			this.sources = sources;
+			this.targets = targets;
+		}
+	}
+
+	/**
+	 * A sorted stream of documents which can look at the key of the next
+	 * document before taking it.
+	 */
+	private static class Peeking {
+		private final Iterator<Document> documents;
+		private final String field;
+		private Document next;
+		private Object previousKey;
+		private boolean started;
+
+		Peeking(Iterator<Document> documents, String field) {
+			this.documents = documents;
+			this.field = field;
+			advance();
+		}
+
+		boolean hasNext() {
+			return next != null;
+		}
+
+		Object key() {
+			return next.get(field);
+		}
+
+		Document next() {
+			Document current = next;
+			advance();
+			return current;
+		}
+
+		List<Document> takeAll(Object key) {
+			List<Document> docs = new ArrayList<>();
+			while (hasNext() && KeyTypes.compare(key(), key) == 0) {
+				docs.add(next());
+			}
+			return docs;
+		}
+
+		private void advance() {
+			next = documents.hasNext() ? documents.next() : null;
+			if (next == null) {
+				return;
+			}
+			Object key = key();
+			if (key instanceof List) {
+				throw new IllegalStateException("Array value of " + field + " cannot be merged: "
+						+ key + "; use the default Denormalizer for multikey joins");
+			}
+			if (started && KeyTypes.compare(previousKey, key) > 0) {
+				throw new IllegalStateException("Documents are not sorted by " + field
+						+ ": " + key + " after " + previousKey);
+			}
+			previousKey = key;
+			started = true;
+		}
+	}
+
+}
@@ -0,0 +1,199 @@
+package com.mgackowski.mongoutil;
+
+import static com.mongodb.client.model.Projections.excludeId;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mgackowski.mongoutil.model.CollModel;
+import com.mgackowski.mongoutil.model.DBModel;
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Projections;
+
+/**
+ * A {@link Denormalizer} which streams each join instead of updating target
+ * documents once per source document: the source collection is scanned in
+ * the order of its foreign key index and the target collection in the order
+ * of its key index, the two scans are merged, and every referenced target
+ * document gets its whole array in a single {@code $set}. Memory holds a batch
+ * of source documents (see {@link DenormalizerConfig#batchSize(int)}) plus the
+ * group of source documents sharing the current foreign key, read with only
+ * the fields the array needs. Memory does not grow with the number of keys,
+ * but it does with the largest group, so a heavily skewed key can exhaust it
+ * or produce an array over the maximum document size, which fails the join.
+ * <p>
+ * Both join keys must be indexed, keys must not be arrays, and joins must not
+ * coerce keys, as the order of coerced keys would differ from the order of
+ * the index. Source documents whose foreign key matches no target document
+ * are reported as orphans. Arrays are replaced rather than appended to, so a
+ * rerun rewrites the same arrays.
+ * @see DenormalizerFactory#getMergeJoinDenormalizer(MongoDatabase)
+ */
+public class MergeJoinDenormalizer implements Denormalizer {
+
+	private static final Logger LOG = LogManager.getLogger(Denormalizer.class);
+
+	private MongoDatabase db;
+	private ShardTopology topology;
+	private DenormalizerConfig config;
+
+	/**
+	 * Creates a Denormalizer object which will act on a pre-existing MongoDB
+	 * Database object.
+	 * @param db the MongoDB Java driver database object
+	 */
+	protected MergeJoinDenormalizer(MongoDatabase db) {
+		this(db, ShardTopology.unsharded(), new DenormalizerConfig());
+	}
+
+	/**
+	 * Creates a Denormalizer object which will route updates of target
+	 * collections by their shard key, as described by the topology.
+	 * @param db the MongoDB Java driver database object
+	 * @param topology the sharding metadata of the cluster
+	 * @param config settings for the execution of each join; thread counts
+	 * and queue capacity do not apply, as each join is a single scan
+	 */
+	protected MergeJoinDenormalizer(MongoDatabase db, ShardTopology topology,
+			DenormalizerConfig config) {
+		this.db = db;
+		this.topology = topology;
+		this.config = config;
+	}
+
+	@Override
+	public boolean denormalize(DBModel model) {
+
+		LOG.info("Validating model...");
+
+		if (!model.validateAll(db)) {
+			LOG.error("Model validation failed, operation aborted. {}", model);
+			return false;
+		}
+
+		LOG.info("Denormalizing by merge join...");
+
+		for (CollModel collection : model.getCollections()) {
+
+			String sourceCollName = collection.getName();
+
+			for (JoinModel join : collection.getJoins()) {
+
+				LOG.info("Merging {} into {}", sourceCollName, join);
+
+				if (!mergeJoin(sourceCollName, join)) {
+					LOG.error("Denormalization aborted, array {} in {} is incomplete.",
+							join.getTargetNewArrayName(), join.getTargetCollection());
+					return false;
+				}
+
+				LOG.info("Done – array {} in {} is referencing {} documents by {}",
+						join.getTargetNewArrayName(), join.getTargetCollection(),
+						sourceCollName, join.getSourceLinkColumn());
+			}
+		}
+		LOG.info("Denormalization done on collections provided in the model.");
+		return true;
+	}
+
+	private boolean mergeJoin(String sourceCollName, JoinModel join) {
+
+		if (join.isCoercingKeys()) {
+			LOG.error("Keys coerced to {} are not in the order of the index of {}; "
+					+ "use the default Denormalizer for this join", join.getTargetKeyType(),
+					join.getSourceForeignKeyColumn());
+			return false;
+		}
+
+		MongoCollection<Document> sourceColl = db.getCollection(sourceCollName);
+		MongoCollection<Document> targetColl = db.getCollection(join.getTargetCollection());
+		Document sourceIndex = indexOn(sourceColl, join.getSourceForeignKeyColumn());
+		Document targetIndex = indexOn(targetColl, join.getTargetLinkColumn());
+		if (sourceIndex == null || targetIndex == null) {
+			return false;
+		}
+
+		List<String> routingFields = topology.routingFields(
+				db.getName() + "." + join.getTargetCollection(), join);
+		List<String> targetFields = new ArrayList<>(routingFields);
+		targetFields.add(join.getTargetLinkColumn());
+
+		LookupCache lookupCache = join.getLookupCollection() == null ? null
+				: new LookupCache(db.getCollection(join.getLookupCollection()),
+						join.getLookupFields(), config.getLookupCacheSize());
+		JoinMetrics metrics = new JoinMetrics(join);
+		Sink sink = config.getSink() != null ? config.getSink()
+				: new MongoSink(db, join, config, metrics);
+		MergeJoin merge = new MergeJoin(join, routingFields, lookupCache, sink, config, metrics);
+
+		try (MongoCursor<Document> sources = sourceColl.find(join.sourceQuery())
+						.projection(sourceProjection(join))
+						.sort(ascending(join.getSourceForeignKeyColumn()))
+						.hint(sourceIndex)
+						.batchSize(config.getBatchSize())
+						.iterator();
+				MongoCursor<Document> targets = targetColl.find(join.targetQuery())
+						.projection(include(targetFields))
+						.sort(ascending(join.getTargetLinkColumn()))
+						.hint(targetIndex)
+						.batchSize(config.getBatchSize())
+						.iterator()) {
+			merge.run(sources, targets);
+			sink.completed(join);
+		} catch (IOException | RuntimeException e) {
+			LOG.error("Join failed after {}; join={}", merge.getMetrics(), join, e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the projection of the source fields an array element is built
+	 * from: the foreign key, the referenced field, which is also the looked-up
+	 * identifier, and the embedded fields
+	 */
+	static Bson sourceProjection(JoinModel join) {
+		Set<String> fields = new LinkedHashSet<>();
+		fields.add(join.getSourceForeignKeyColumn());
+		fields.add(join.getSourceLinkColumn());
+		fields.addAll(join.getEmbeddedFields());
+		Bson include = include(new ArrayList<>(fields));
+		return fields.contains("_id") ? include : Projections.fields(include, excludeId());
+	}
+
+	/**
+	 * @return the key of an index on the collection whose first field is the
+	 * given field, or null (logging how to create one) if there is none
+	 */
+	private static Document indexOn(MongoCollection<Document> collection, String field) {
+		if (field.equals("_id")) {
+			return new Document("_id", 1);
+		}
+		for (Document index : collection.listIndexes()) {
+			Document key = (Document) index.get("key");
+			String first = key.keySet().iterator().next();
+			if (first.equals(field) && !"hashed".equals(key.get(first))) {
+				return key;
+			}
+		}
+		LOG.error("Collection {} has no index on {}, which a merge join scans in order; "
+				+ "create it with db.{}.createIndex({{}: 1}) or use the default Denormalizer",
+				collection.getNamespace(), field,
+				collection.getNamespace().getCollectionName(), field);
+		return null;
+	}
+
+}
@@ -0,0 +1,138 @@
+package com.mgackowski.mongoutil;
+
+import static com.mongodb.client.model.Updates.addEachToSet;
+import static com.mongodb.client.model.Updates.addToSet;
+import static com.mongodb.client.model.Updates.pull;
+import static com.mongodb.client.model.Updates.push;
+import static com.mongodb.client.model.Updates.pushEach;
+import static com.mongodb.client.model.Updates.set;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.Document;
+
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * The default {@link Sink}, adding elements to the arrays in the target
+ * collection of a single join with ordered bulk writes. Applies the
+ * idempotent write mode, retries and profiling of the
+ * {@link DenormalizerConfig}.
+ */
+class MongoSink implements Sink {
+
+	private static final BulkWriteOptions ORDERED = new BulkWriteOptions().ordered(true);
+
+	private final MongoDatabase db;
+	private final MongoCollection<Document> targetColl;
+	private final JoinModel join;
+	private final DenormalizerConfig config;
+	private final SlowOpProfiler profiler;
+	private final BatchRetry retry;
+
+	MongoSink(MongoDatabase db, JoinModel join, DenormalizerConfig config, JoinMetrics metrics) {
+		this.db = db;
+		this.targetColl = db.getCollection(join.getTargetCollection());
+		this.join = join;
+		this.config = config;
+		this.profiler = new SlowOpProfiler(join, config.getProfileTopK(),
+				config.getProfileSampleEvery());
+		this.retry = new BatchRetry(config.isIdempotentWrites() ? config.getMaxRetries() : 0,
+				config.getRetryBackoffMillis(), metrics);
+	}
+
+	@Override
+	public void write(JoinModel join, List<TargetUpdate> updates) throws InterruptedIOException {
+
+		List<WriteModel<Document>> writes = new ArrayList<>(updates.size());
+		try {
+			for (TargetUpdate update : updates) {
+				if (!profiler.shouldSample()) {
+					addWrites(update, writes);
+					continue;
+				}
+				/* time all writes of the update together, e.g. both $pull and $push */
+				bulkWrite(writes);
+				writes = new ArrayList<>(updates.size());
+				List<WriteModel<Document>> sampled = new ArrayList<>(2);
+				addWrites(update, sampled);
+				long started = System.nanoTime();
+				bulkWrite(sampled);
+				UpdateManyModel<Document> added =
+						(UpdateManyModel<Document>) sampled.get(sampled.size() - 1);
+				profiler.record(added, System.nanoTime() - started,
+						() -> profiler.arraySize(db, added.getFilter()));
+			}
+			bulkWrite(writes);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while retrying a batch");
+		}
+	}
+
+	SlowOpProfiler getProfiler() {
+		return profiler;
+	}
+
+	@Override
+	public void completed(JoinModel join) {
+		profiler.report(db, config.getProfileReport());
+	}
+
+	/**
+	 * Applies updates in order, retrying them on transient errors if writes
+	 * are idempotent; sampled updates split a batch in two so that the order
+	 * of updates is the same as without profiling.
+	 */
+	private void bulkWrite(List<WriteModel<Document>> writes) throws InterruptedException {
+		if (!writes.isEmpty()) {
+			retry.execute(() -> targetColl.bulkWrite(writes, ORDERED));
+		}
+	}
+
+	/**
+	 * Builds the updates adding the elements to the array of the target
+	 * documents, with {@code $push} or, if writes are idempotent, with
+	 * {@code $addToSet} for references and by replacing embedded documents
+	 * with the same {@code _id}. Complete updates replace the array with
+	 * {@code $set}, which is idempotent in itself.
+	 */
+	private void addWrites(TargetUpdate update, List<WriteModel<Document>> writes) {
+
+		String arrayName = join.getTargetNewArrayName();
+		List<Object> elements = update.getElements();
+		boolean single = elements.size() == 1;
+
+		if (update.isComplete()) {
+			writes.add(new UpdateManyModel<>(update.getFilter(), set(arrayName, elements)));
+		} else if (!config.isIdempotentWrites()) {
+			writes.add(new UpdateManyModel<>(update.getFilter(), single
+					? push(arrayName, elements.get(0))
+					: pushEach(arrayName, elements)));
+		} else if (join.isEmbedding()) {
+			List<Object> ids = new ArrayList<>(elements.size());
+			for (Object element : elements) {
+				ids.add(((Document) element).get("_id"));
+			}
+			/* $pull and $push of the same array conflict within a single update */
+			writes.add(new UpdateManyModel<>(update.getFilter(), pull(arrayName, single
+					? new Document("_id", ids.get(0))
+					: new Document("_id", new Document("$in", ids)))));
+			writes.add(new UpdateManyModel<>(update.getFilter(), single
+					? push(arrayName, elements.get(0))
+					: pushEach(arrayName, elements)));
+		} else {
+			writes.add(new UpdateManyModel<>(update.getFilter(), single
+					? addToSet(arrayName, elements.get(0))
+					: addEachToSet(arrayName, elements)));
+		}
+	}
+
+}
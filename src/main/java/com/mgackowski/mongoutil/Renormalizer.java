@@ -0,0 +1,37 @@
+package com.mgackowski.mongoutil;
+
+import com.mgackowski.mongoutil.model.DBModel;
+
+/**
+ * Reverses the work of a {@link Denormalizer}: reconstructs source
+ * collections modelled after relational databases (foreign keys, link tables)
+ * from the arrays of references or embedded documents in target collections.
+ * <p>
+ * Usage is analogous to a Denormalizer; pass the same {@link DBModel} that was
+ * used to denormalize the collections.
+ * @see DenormalizerFactory
+ */
+public interface Renormalizer {
+
+	/**
+	 * For all modelled collections, unwinds the arrays created by every join
+	 * of the collection and writes one document per array element back to the
+	 * source collection, restoring the foreign key, the referenced field and
+	 * any embedded fields. Foreign keys coerced to the target key type are
+	 * converted back to the type found in the source collection's remaining
+	 * documents.
+	 * <p>
+	 * If the referenced field is the primary key of the source collection, the
+	 * original {@code _id} values are restored and the documents restored from
+	 * several joins are merged by {@code _id}; otherwise (link tables) new
+	 * identifiers are generated and the collection must be modelled with a
+	 * single join. Fields of documents already present in the source
+	 * collection are never overwritten.
+	 * @param model the model that was passed to {@link Denormalizer#denormalize(DBModel)}
+	 * @param removeArrays whether to remove the arrays of every join from the
+	 * target collections once the source collections have been reconstructed
+	 * @return true if all collections were reconstructed
+	 */
+	boolean renormalize(DBModel model, boolean removeArrays);
+
+}
@@ -0,0 +1,260 @@
+package com.mgackowski.mongoutil;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.nor;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Sorts.ascending;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.BsonMaxKey;
+import org.bson.BsonMinKey;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Reads the sharding metadata of a cluster from the {@code config} database,
+ * so that scans of source collections can be split per shard and updates of
+ * target collections can include the target's shard key.
+ * <p>
+ * When not connected to a sharded cluster, every collection is reported as
+ * unsharded: a single partition covering the whole collection and no extra
+ * routing fields.
+ */
+public class ShardTopology {
+
+	private static final Logger LOG = LogManager.getLogger(ShardTopology.class);
+
+	private static final ShardTopology UNSHARDED = new ShardTopology(null);
+
+	private MongoDatabase configDb;
+
+	protected ShardTopology(MongoDatabase configDb) {
+		this.configDb = configDb;
+	}
+
+	/**
+	 * @return a topology which reports every collection as unsharded
+	 */
+	public static ShardTopology unsharded() {
+		return UNSHARDED;
+	}
+
+	/**
+	 * Returns the topology of the cluster the client is connected to; if the
+	 * client is not connected to a mongos router, the topology is unsharded.
+	 * @param client the MongoDB Java driver client
+	 */
+	public static ShardTopology of(MongoClient client) {
+		Document isMaster = client.getDatabase("admin")
+				.runCommand(new Document("isMaster", 1));
+		if (!"isdbgrid".equals(isMaster.getString("msg"))) {
+			return UNSHARDED;
+		}
+		return new ShardTopology(client.getDatabase("config"));
+	}
+
+	/**
+	 * @param namespace the collection namespace, i.e. "database.collection"
+	 * @return the shard key pattern of the collection, or null if unsharded
+	 */
+	public Document shardKey(String namespace) {
+		Document coll = collectionMetadata(namespace);
+		return coll == null ? null : (Document) coll.get("key");
+	}
+
+	/**
+	 * Splits a collection into one filter per shard, each matching the chunk
+	 * ranges owned by that shard, so that each scan is served by a single
+	 * shard. Only collections sharded on a single ranged field are split;
+	 * for any other collection a single empty filter is returned.
+	 * <p>
+	 * The last filter matches the documents which no range filter matches
+	 * (e.g. a missing shard key, or a value whose type differs from the chunk
+	 * bounds), so that together the filters always cover the collection.
+	 * @param namespace the collection namespace, i.e. "database.collection"
+	 * @return filters which together match every document exactly once
+	 */
+	public List<Bson> partitions(String namespace) {
+		Document coll = collectionMetadata(namespace);
+		if (coll == null) {
+			return Collections.singletonList(new Document());
+		}
+		Document key = (Document) coll.get("key");
+		if (key.size() != 1 || !(key.values().iterator().next() instanceof Number)) {
+			LOG.info("Shard key {} of {} is not a single ranged field, scanning as one partition",
+					key, namespace);
+			return Collections.singletonList(new Document());
+		}
+		Bson chunkFilter = coll.containsKey("uuid")
+				? or(eq("ns", namespace), eq("uuid", coll.get("uuid")))
+				: eq("ns", namespace);
+		List<Document> chunks = configDb.getCollection("chunks")
+				.find(chunkFilter)
+				.sort(ascending("min"))
+				.into(new ArrayList<>());
+		String field = key.keySet().iterator().next();
+		List<Bson> partitions = partitionsFrom(field, chunks);
+		LOG.info("Partitioned {} into {} scans by shard key {}",
+				namespace, partitions.size(), field);
+		return partitions;
+	}
+
+	/**
+	 * Returns the fields of the target's shard key which an update filter
+	 * needs in addition to the join key to be routed to a single shard.
+	 * @param namespace the target collection namespace
+	 * @param join the join whose target is updated
+	 * @return the routing fields; empty if the target is unsharded or the join
+	 * key already is the shard key
+	 */
+	public List<String> routingFields(String namespace, JoinModel join) {
+		Document key = shardKey(namespace);
+		if (key == null) {
+			return Collections.emptyList();
+		}
+		List<String> fields = new ArrayList<>(key.keySet());
+		fields.remove(join.getTargetLinkColumn());
+		return fields;
+	}
+
+	/**
+	 * Returns the routing fields (see {@link #routingFields(String, JoinModel)})
+	 * whose values source documents hold, as mapped by
+	 * {@link JoinModel#route(String, String)}. A source field is never assumed
+	 * to hold the shard key because it has the same name.
+	 * @param namespace the target collection namespace
+	 * @param join the join whose target is updated
+	 * @return source fields by the routing field they hold the value of
+	 */
+	public Map<String, String> sourceRouting(String namespace, JoinModel join) {
+		Map<String, String> routing = new LinkedHashMap<>();
+		List<String> unmapped = new ArrayList<>();
+		for (String field : routingFields(namespace, join)) {
+			String sourceField = join.getRouting().get(field);
+			if (sourceField != null) {
+				routing.put(field, sourceField);
+			} else {
+				unmapped.add(field);
+			}
+		}
+		if (!unmapped.isEmpty()) {
+			LOG.warn("Target {} is sharded on {}; updates are broadcast to all shards unless "
+					+ "fields {} are mapped to source fields with JoinModel.route()",
+					namespace, shardKey(namespace), unmapped);
+		}
+		return routing;
+	}
+
+	/**
+	 * Adds the routing fields present in a document to an update filter, so
+	 * that the update can be routed to a single shard.
+	 * @param routing fields of the document by the routing field they hold
+	 * the value of
+	 */
+	static Bson routed(Bson filter, Map<String, String> routing, Document doc) {
+		if (routing.isEmpty()) {
+			return filter;
+		}
+		List<Bson> filters = new ArrayList<>();
+		filters.add(filter);
+		for (Map.Entry<String, String> field : routing.entrySet()) {
+			if (doc.containsKey(field.getValue())) {
+				filters.add(eq(field.getKey(), doc.get(field.getValue())));
+			}
+		}
+		return filters.size() == 1 ? filter : and(filters);
+	}
+
+	/**
+	 * Groups chunks (sorted by their lower bound) by owning shard, merging
+	 * adjacent chunks of the same shard into a single range.
+	 */
+	static List<Bson> partitionsFrom(String field, List<Document> chunks) {
+		Map<String, List<Bson>> rangesByShard = new LinkedHashMap<>();
+		List<Bson> allRanges = new ArrayList<>();
+		String shard = null;
+		Object min = null;
+		Object max = null;
+		for (Document chunk : chunks) {
+			Object chunkMin = ((Document) chunk.get("min")).get(field);
+			Object chunkMax = ((Document) chunk.get("max")).get(field);
+			String chunkShard = chunk.getString("shard");
+			if (chunkShard.equals(shard) && chunkMin.equals(max)) {
+				max = chunkMax;
+				continue;
+			}
+			if (shard != null) {
+				addRange(rangesByShard, allRanges, shard, field, min, max);
+			}
+			shard = chunkShard;
+			min = chunkMin;
+			max = chunkMax;
+		}
+		if (shard != null) {
+			addRange(rangesByShard, allRanges, shard, field, min, max);
+		}
+		if (allRanges.isEmpty()) {
+			return Collections.singletonList(new Document());
+		}
+
+		List<Bson> partitions = new ArrayList<>();
+		for (List<Bson> ranges : rangesByShard.values()) {
+			partitions.add(ranges.size() == 1 ? ranges.get(0) : or(ranges));
+		}
+		partitions.add(nor(allRanges));
+		return partitions;
+	}
+
+	private static void addRange(Map<String, List<Bson>> rangesByShard, List<Bson> allRanges,
+			String shard, String field, Object min, Object max) {
+		List<Bson> bounds = new ArrayList<>();
+		if (!isMinKey(min)) {
+			bounds.add(gte(field, min));
+		}
+		if (!isMaxKey(max)) {
+			bounds.add(lt(field, max));
+		}
+		Bson range = bounds.isEmpty() ? new Document()
+				: bounds.size() == 1 ? bounds.get(0) : and(bounds);
+		rangesByShard.computeIfAbsent(shard, s -> new ArrayList<>()).add(range);
+		allRanges.add(range);
+	}
+
+	private static boolean isMinKey(Object bound) {
+		return bound instanceof MinKey || bound instanceof BsonMinKey;
+	}
+
+	private static boolean isMaxKey(Object bound) {
+		return bound instanceof MaxKey || bound instanceof BsonMaxKey;
+	}
+
+	private Document collectionMetadata(String namespace) {
+		if (configDb == null) {
+			return null;
+		}
+		Document coll = configDb.getCollection("collections")
+				.find(eq("_id", namespace))
+				.first();
+		if (coll == null || coll.getBoolean("dropped", false)) {
+			return null;
+		}
+		return coll;
+	}
+
+}
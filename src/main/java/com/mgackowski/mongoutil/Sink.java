@@ -0,0 +1,44 @@
+package com.mgackowski.mongoutil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+import com.mgackowski.mongoutil.model.JoinModel;
+
+/**
+ * Receives the array elements computed by a {@link Denormalizer}, in batches
+ * of the configured size (see {@link DenormalizerConfig#batchSize(int)}).
+ * <p>
+ * By default, elements are added to the arrays in the target collections.
+ * Set a different sink with {@link DenormalizerConfig#sink(Sink)} to stream
+ * them elsewhere, e.g. to a file with {@link JsonLinesSink} or
+ * {@link BsonFileSink}, leaving the target collections untouched.
+ * <p>
+ * A sink receives the batches of all joins of a model and is called from all
+ * writer threads (see {@link DenormalizerConfig#writerThreads(int)}), so it
+ * must be thread-safe. The sink is not closed by the Denormalizer.
+ */
+public interface Sink extends Closeable {
+
+	/**
+	 * Writes a batch of updates of a single join.
+	 * @param join the join the updates were computed for
+	 * @param updates updates in the order the source documents were read
+	 * @throws IOException if the batch could not be written; the join fails
+	 */
+	void write(JoinModel join, List<TargetUpdate> updates) throws IOException;
+
+	/**
+	 * Called once every batch of a join has been written successfully.
+	 * @param join the completed join
+	 * @throws IOException if buffered updates could not be written
+	 */
+	default void completed(JoinModel join) throws IOException {
+	}
+
+	@Override
+	default void close() throws IOException {
+	}
+
+}
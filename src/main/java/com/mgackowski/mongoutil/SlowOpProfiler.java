@@ -0,0 +1,216 @@
+package com.mgackowski.mongoutil;
+
+import static com.mongodb.client.model.Aggregates.limit;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Aggregates.project;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.UpdateManyModel;
+
+/**
+ * Keeps the slowest target updates of a join in a bounded heap. Every n-th
+ * update is executed and timed on its own (see
+ * {@link DenormalizerConfig#profile(int, int)}), together with the
+ * {@code $pull} preceding it in idempotent embed mode, and kept as the
+ * update adding the elements; updates faster than the fastest one kept are
+ * discarded without allocating anything, so profiling can stay enabled on
+ * full runs.
+ * <p>
+ * The size of the target array is read right after a kept update, as it was
+ * when the update was slow; the query plan of each kept update is fetched
+ * when the join completes.
+ */
+class SlowOpProfiler {
+
+	private static final Logger LOG = LogManager.getLogger(SlowOpProfiler.class);
+
+	private final JoinModel join;
+	private final int topK;
+	private final int sampleEvery;
+	private final AtomicLong writes = new AtomicLong();
+	private final PriorityQueue<Entry> slowest;
+	private volatile long threshold;
+
+	SlowOpProfiler(JoinModel join, int topK, int sampleEvery) {
+		this.join = join;
+		this.topK = topK;
+		this.sampleEvery = Math.max(sampleEvery, 1);
+		this.slowest = new PriorityQueue<>(Math.max(topK, 1),
+				Comparator.comparingLong((Entry e) -> e.nanos));
+	}
+
+	/**
+	 * @return true if the next update should be executed and timed on its own
+	 */
+	boolean shouldSample() {
+		return topK > 0 && writes.incrementAndGet() % sampleEvery == 0;
+	}
+
+	/**
+	 * Offers a timed update; kept only if it is among the slowest so far.
+	 * @param arraySize reads the current size of the updated array; only
+	 * called for updates slower than those kept so far
+	 */
+	void record(UpdateManyModel<Document> update, long nanos, Supplier<Object> arraySize) {
+		if (nanos <= threshold) {
+			return;
+		}
+		Entry entry = new Entry(update, nanos, arraySize.get());
+		synchronized (slowest) {
+			if (slowest.size() < topK) {
+				slowest.add(entry);
+			} else if (nanos > slowest.peek().nanos) {
+				slowest.poll();
+				slowest.add(entry);
+			}
+			if (slowest.size() == topK) {
+				threshold = slowest.peek().nanos;
+			}
+		}
+	}
+
+	/**
+	 * @return the kept updates, slowest first
+	 */
+	List<UpdateManyModel<Document>> slowest() {
+		List<UpdateManyModel<Document>> updates = new ArrayList<>();
+		for (Entry entry : sortedEntries()) {
+			updates.add(entry.update);
+		}
+		return updates;
+	}
+
+	/**
+	 * Logs the kept updates, slowest first, with the size of the updated
+	 * array after the update and the winning query plan of the update's
+	 * filter, and appends them to the report file if one is given.
+	 * @param reportFile file to append JSON lines to, or null
+	 */
+	void report(MongoDatabase db, Path reportFile) {
+		List<Entry> entries = sortedEntries();
+		if (entries.isEmpty()) {
+			return;
+		}
+
+		LOG.info("Slowest sampled updates of array {} in {}:",
+				join.getTargetNewArrayName(), join.getTargetCollection());
+		List<String> lines = new ArrayList<>();
+		for (Entry entry : entries) {
+			BsonDocument filter = toBsonDocument(db, entry.update.getFilter());
+			Document line = new Document("collection", join.getTargetCollection())
+					.append("array", join.getTargetNewArrayName())
+					.append("filter", filter)
+					.append("durationMs", entry.nanos / 1_000_000.0)
+					.append("arraySize", entry.arraySize)
+					.append("plan", winningPlan(db, filter, toBsonDocument(db, entry.update.getUpdate())));
+			LOG.info("   {} ms, array size {}, plan {}, filter {}", line.get("durationMs"),
+					line.get("arraySize"), line.get("plan"), filter.toJson());
+			lines.add(line.toJson());
+		}
+
+		if (reportFile != null) {
+			try {
+				Files.write(reportFile, lines, StandardCharsets.UTF_8,
+						StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			} catch (IOException e) {
+				LOG.error("Could not write profiler report to {}", reportFile, e);
+			}
+		}
+	}
+
+	private List<Entry> sortedEntries() {
+		List<Entry> entries;
+		synchronized (slowest) {
+			entries = new ArrayList<>(slowest);
+		}
+		Collections.sort(entries, Comparator.comparingLong((Entry e) -> e.nanos).reversed());
+		return entries;
+	}
+
+	/**
+	 * @return the size of the array in the first target document matching
+	 * the filter, or null if there is none or it cannot be read
+	 */
+	Object arraySize(MongoDatabase db, Bson filter) {
+		String array = "$" + join.getTargetNewArrayName();
+		try {
+			Document size = db.getCollection(join.getTargetCollection()).aggregate(Arrays.asList(
+					match(filter),
+					limit(1),
+					project(new Document("size", new Document("$cond", Arrays.asList(
+							new Document("$isArray", array), new Document("$size", array), 0))))))
+					.first();
+			return size == null ? null : size.get("size");
+		} catch (MongoException e) {
+			LOG.warn("Could not read the size of array {}: {}", join.getTargetNewArrayName(),
+					e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @return the stages of the winning plan, outermost first, e.g.
+	 * "UPDATE < FETCH < IXSCAN"
+	 */
+	private String winningPlan(MongoDatabase db, BsonDocument filter, BsonDocument update) {
+		Document explain;
+		try {
+			explain = db.runCommand(new Document("explain",
+					new Document("update", join.getTargetCollection())
+							.append("updates", Arrays.asList(new Document("q", filter)
+									.append("u", update)
+									.append("multi", true))))
+					.append("verbosity", "queryPlanner"));
+		} catch (MongoException e) {
+			return "unavailable (" + e.getMessage() + ")";
+		}
+		Document planner = (Document) explain.get("queryPlanner");
+		Document plan = planner == null ? null : (Document) planner.get("winningPlan");
+		StringBuilder stages = new StringBuilder();
+		while (plan != null) {
+			if (stages.length() > 0) stages.append(" < ");
+			stages.append(plan.getString("stage"));
+			plan = (Document) plan.get("inputStage");
+		}
+		return stages.length() == 0 ? "unavailable" : stages.toString();
+	}
+
+	private static BsonDocument toBsonDocument(MongoDatabase db, Bson bson) {
+		return bson.toBsonDocument(BsonDocument.class, db.getCodecRegistry());
+	}
+
+	private static class Entry {
+		final UpdateManyModel<Document> update;
+		final long nanos;
+		final Object arraySize;
+
+		Entry(UpdateManyModel<Document> update, long nanos, Object arraySize) {
+			this.update = update;
+			this.nanos = nanos;
+			this.arraySize = arraySize;
+		}
+	}
+
+}
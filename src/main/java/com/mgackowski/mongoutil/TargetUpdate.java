@@ -0,0 +1,69 @@
+package com.mgackowski.mongoutil;
+
+import java.util.List;
+
+import org.bson.conversions.Bson;
+
+/**
+ * Elements to be added to the array of the target documents with a given key,
+ * as computed by a {@link Denormalizer} and passed to a {@link Sink}.
+ * <p>
+ * Elements are references (the values of the referenced source field) or,
+ * for joins embedding fields, documents whose {@code _id} is the reference.
+ * A complete update holds every element of the array, which it replaces.
+ */
+public class TargetUpdate {
+
+	private final Object key;
+	private final Bson filter;
+	private final List<Object> elements;
+	private final boolean complete;
+
+	/**
+	 * @param key value of the target key (see
+	 * {@link com.mgackowski.mongoutil.model.JoinModel#on(String, String)})
+	 * @param filter query selecting the target documents with the key,
+	 * including any target filter and shard key of the join
+	 * @param elements elements to add to the array, in order
+	 */
+	public TargetUpdate(Object key, Bson filter, List<Object> elements) {
+		this(key, filter, elements, false);
+	}
+
+	/**
+	 * @param key value of the target key
+	 * @param filter query selecting the target documents with the key
+	 * @param elements elements of the array, in order
+	 * @param complete true if the elements replace the whole array rather
+	 * than being added to it
+	 */
+	public TargetUpdate(Object key, Bson filter, List<Object> elements, boolean complete) {
+		this.key = key;
+		this.filter = filter;
+		this.elements = elements;
+		this.complete = complete;
+	}
+
+	public Object getKey() {
+		return key;
+	}
+
+	public Bson getFilter() {
+		return filter;
+	}
+
+	public List<Object> getElements() {
+		return elements;
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	@Override
+	public String toString() {
+		return "TargetUpdate [key=" + key + ", elements=" + elements +
+				(complete ? ", complete" : "") + "]";
+	}
+
+}
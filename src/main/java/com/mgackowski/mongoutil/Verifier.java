@@ -0,0 +1,26 @@
+package com.mgackowski.mongoutil;
+
+import com.mgackowski.mongoutil.model.DBModel;
+
+/**
+ * Checks that a completed denormalization is consistent with its source
+ * collections.
+ * @see DenormalizerFactory
+ */
+public interface Verifier {
+
+	/**
+	 * For all modelled joins, compares the number of source documents
+	 * referencing each target key (of distinct references, if the
+	 * denormalization used idempotent writes) with the length of the array
+	 * created in the matching target documents, and reports the keys for
+	 * which they differ.
+	 * <p>
+	 * This method does not modify any existing fields or collections.
+	 * @param model the model that was passed to {@link Denormalizer#denormalize(DBModel)}
+	 * @return true if every array has exactly as many elements as there are
+	 * source documents referencing its document
+	 */
+	boolean verify(DBModel model);
+
+}
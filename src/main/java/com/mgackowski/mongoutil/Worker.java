@@ -0,0 +1,257 @@
+package com.mgackowski.mongoutil;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.set;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mgackowski.mongoutil.model.CollModel;
+import com.mgackowski.mongoutil.model.DBModel;
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+
+/**
+ * Claims and executes the work units of a run planned by a
+ * {@link Coordinator}. Any number of workers, in any number of processes,
+ * can work on the same run.
+ * <p>
+ * A claimed unit is leased to the worker for a limited time, which the worker
+ * extends with heartbeats while executing it. If a worker crashes, its lease
+ * expires and the unit is claimed again by another worker, and a unit that
+ * failed is released to be claimed again, up to a maximum number of attempts.
+ * Since the unit is then executed again from the start, workers always use
+ * {@link DenormalizerConfig#idempotentWrites(boolean) idempotent writes}, so
+ * unlike a single-process run with the default settings, a distributed run
+ * stores source documents with the same reference only once per array.
+ */
+public class Worker {
+
+	private static final Logger LOG = LogManager.getLogger(Worker.class);
+
+	private MongoDatabase db;
+	private ShardTopology topology;
+	private DenormalizerConfig config;
+	private String runId;
+	private String workerId;
+	private long leaseMillis = 60_000;
+	private int maxAttempts = 3;
+
+	/**
+	 * @param db the database the model will be applied to, which also holds
+	 * the coordination collection
+	 * @param topology the sharding metadata of the cluster
+	 * @param config settings for the execution of each work unit; the worker
+	 * uses a copy with idempotent writes if they are not enabled, leaving the
+	 * given config unchanged
+	 * @param runId identifier of the run planned by the Coordinator
+	 */
+	public Worker(MongoDatabase db, ShardTopology topology,
+			DenormalizerConfig config, String runId) {
+		this.db = db;
+		this.topology = topology;
+		if (!config.isIdempotentWrites()) {
+			LOG.info("Enabling idempotent writes, as work units may be executed more than once");
+			config = new DenormalizerConfig(config).idempotentWrites(true);
+		}
+		this.config = config;
+		this.runId = runId;
+		this.workerId = ManagementFactory.getRuntimeMXBean().getName()
+				+ "/" + UUID.randomUUID().toString().substring(0, 8);
+	}
+
+	/**
+	 * @param leaseMillis how long a claimed unit stays leased without a
+	 * heartbeat (default 60 seconds); heartbeats are sent every third of it
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public Worker leaseMillis(long leaseMillis) {
+		this.leaseMillis = leaseMillis;
+		return this;
+	}
+
+	/**
+	 * @param maxAttempts number of times a unit is claimed before it is
+	 * marked as failed (default 3)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public Worker maxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+		return this;
+	}
+
+	/**
+	 * Claims and executes units of the run until every unit is done or
+	 * failed. While units leased by other workers remain, waits for them to
+	 * finish or for their leases to expire.
+	 * @param model the model the run was planned with
+	 * @return true if every unit of the run is done
+	 */
+	public boolean work(DBModel model) {
+
+		LOG.info("Worker {} validating model...", workerId);
+
+		if(!model.validateAll(db)) {
+			LOG.error("Model validation failed, worker stopped. {}", model);
+			return false;
+		}
+
+		MongoCollection<Document> units = Coordinator.units(db);
+		ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor();
+		int executed = 0;
+		try {
+			while (true) {
+				failExhausted(units);
+				Document unit = claim(units);
+				if (unit == null) {
+					if (units.count(and(eq("run", runId),
+							in("state", Coordinator.PENDING, Coordinator.LEASED))) == 0) {
+						break;
+					}
+					Thread.sleep(Math.max(leaseMillis / 4, 100));
+					continue;
+				}
+				if (unit.getInteger("model") != Coordinator.fingerprint(model)) {
+					LOG.error("Unit {} was planned for a different model, worker stopped.",
+							unit.get("_id"));
+					release(units, unit, Coordinator.PENDING, "model mismatch");
+					return false;
+				}
+
+				ScheduledFuture<?> heartbeat = heartbeats.scheduleAtFixedRate(
+						() -> extendLease(units, unit),
+						leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+				boolean success;
+				try {
+					success = execute(model, unit);
+				} catch (MongoException e) {
+					LOG.error("Unit {} failed", unit.get("_id"), e);
+					success = false;
+				} finally {
+					heartbeat.cancel(false);
+				}
+
+				if (success) {
+					release(units, unit, Coordinator.DONE, null);
+					executed++;
+				} else {
+					boolean exhausted = unit.getInteger("attempts") >= maxAttempts;
+					release(units, unit, exhausted ? Coordinator.FAILED : Coordinator.PENDING,
+							"execution failed on " + workerId);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOG.warn("Worker {} interrupted", workerId);
+			return false;
+		} finally {
+			heartbeats.shutdownNow();
+		}
+
+		long failed = units.count(and(eq("run", runId), eq("state", Coordinator.FAILED)));
+		LOG.info("Worker {} done after executing {} units; run '{}' has {} failed units",
+				workerId, executed, runId, failed);
+		return failed == 0;
+	}
+
+	/**
+	 * Atomically leases a pending unit, or a leased unit whose lease expired,
+	 * that has been claimed fewer than the maximum number of times.
+	 */
+	private Document claim(MongoCollection<Document> units) {
+		Date now = new Date();
+		return units.findOneAndUpdate(
+				and(claimable(now), lt("attempts", maxAttempts)),
+				combine(set("state", Coordinator.LEASED),
+						set("owner", workerId),
+						set("leaseExpires", new Date(now.getTime() + leaseMillis)),
+						inc("attempts", 1)),
+				new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+	}
+
+	/**
+	 * Marks the units that could be claimed but have used up their attempts,
+	 * e.g. whose last lease expired, as failed.
+	 */
+	private void failExhausted(MongoCollection<Document> units) {
+		long failed = units.updateMany(
+				and(claimable(new Date()), gte("attempts", maxAttempts)),
+				combine(set("state", Coordinator.FAILED), set("leaseExpires", new Date(0)),
+						set("finished", new Date()),
+						set("error", "gave up after " + maxAttempts + " attempts")))
+				.getModifiedCount();
+		if (failed > 0) {
+			LOG.warn("Worker {} marked {} units as failed after {} attempts",
+					workerId, failed, maxAttempts);
+		}
+	}
+
+	private Bson claimable(Date now) {
+		return and(eq("run", runId), or(
+				eq("state", Coordinator.PENDING),
+				and(eq("state", Coordinator.LEASED), lt("leaseExpires", now))));
+	}
+
+	private void extendLease(MongoCollection<Document> units, Document unit) {
+		try {
+			long matched = units.updateOne(
+					and(eq("_id", unit.get("_id")), eq("owner", workerId)),
+					set("leaseExpires", new Date(System.currentTimeMillis() + leaseMillis)))
+					.getMatchedCount();
+			if (matched == 0) {
+				LOG.warn("Worker {} lost the lease on unit {}", workerId, unit.get("_id"));
+			}
+		} catch (MongoException e) {
+			LOG.warn("Heartbeat for unit {} failed: {}", unit.get("_id"), e.getMessage());
+		}
+	}
+
+	private void release(MongoCollection<Document> units, Document unit,
+			String state, String error) {
+		Bson update = combine(set("state", state), set("leaseExpires", new Date(0)),
+				set("finished", new Date()), set("error", error));
+		long matched = units.updateOne(
+				and(eq("_id", unit.get("_id")), eq("owner", workerId)), update)
+				.getMatchedCount();
+		if (matched == 0) {
+			LOG.warn("Unit {} was claimed by another worker before it was released as {}",
+					unit.get("_id"), state);
+		}
+	}
+
+	private boolean execute(DBModel model, Document unit) {
+		CollModel collection = model.getCollections().get(unit.getInteger("collection"));
+		JoinModel join = collection.getJoins().get(unit.getInteger("join"));
+		List<Bson> partition = Collections.singletonList(
+				Document.parse(unit.getString("partition")));
+
+		LOG.info("Worker {} executing unit {} (attempt {}): {} into {}", workerId,
+				unit.get("_id"), unit.get("attempts"), collection.getName(), join);
+		return new JoinPipeline(db, collection.getName(), join, topology, config)
+				.run(partition);
+	}
+
+}
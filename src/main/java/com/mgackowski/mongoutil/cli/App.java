@@ -5,9 +5,19 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.bson.Document;
 
+import com.mgackowski.mongoutil.BsonFileSink;
+import com.mgackowski.mongoutil.Coordinator;
+import com.mgackowski.mongoutil.DenormalizerConfig;
 import com.mgackowski.mongoutil.DenormalizerFactory;
+import com.mgackowski.mongoutil.JsonLinesSink;
+import com.mgackowski.mongoutil.ShardTopology;
+import com.mgackowski.mongoutil.Sink;
+import com.mgackowski.mongoutil.Worker;
+import com.mgackowski.mongoutil.generator.DatasetGenerator;
 import com.mgackowski.mongoutil.model.DBModel;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
@@ -15,9 +25,16 @@ import com.mongodb.client.MongoDatabase;
 
 public class App {
 	
+	private static final Logger LOG = LogManager.getLogger(App.class);
+	
 	public static void main(String args[]) {
 		
-		if (args.length != 2) {
+		if (args.length >= 3 && args.length <= 5 && args[1].equals("daemon")) {
+			daemon(args);
+			return;
+		}
+		
+		if (args.length < 2 || args.length > 4) {
 			printManual();
 			System.exit(1);
 		}
@@ -36,22 +53,165 @@ public class App {
 		DBModel model = ModelAdaptor.toDBModel(documentJson);	
 		
 		MongoClient client = new MongoClient(new MongoClientURI(args[0]));
-		MongoDatabase db = client.getDatabase(model.getDBName());
 		
-		DenormalizerFactory.getDenormalizer(db).denormalize(model);
+		String mode = args.length >= 3 ? args[2] : "denormalize";
+		boolean success;
+		try {
+			success = run(client, model, mode, args.length == 4 ? args[3] : null,
+					modelPath.getFileName().toString());
+		} catch (IllegalArgumentException e) {
+			client.close();
+			printManual();
+			System.exit(1);
+			return;
+		}
 		
 		client.close();
-		System.exit(0);
+		System.exit(success ? 0 : 1);
 		
 	}
 	
+	/**
+	 * Runs models submitted to a {@link Daemon} until the JVM is stopped,
+	 * waiting for queued and running jobs before exiting.
+	 */
+	private static void daemon(String args[]) {
+		
+		int concurrency;
+		int port;
+		try {
+			concurrency = args.length >= 4 ? Integer.parseInt(args[3]) : 4;
+			port = args.length == 5 ? Integer.parseInt(args[4]) : -1;
+		} catch (NumberFormatException e) {
+			concurrency = 0;
+			port = -1;
+		}
+		if ((args[2].equals("-") && args.length < 5) || concurrency < 1
+				|| (args.length == 5 && (port < 0 || port > 65535))) {
+			printManual();
+			System.exit(1);
+		}
+		MongoClient client = new MongoClient(new MongoClientURI(args[0]));
+		Daemon daemon = new Daemon(client, concurrency);
+		try {
+			if (!args[2].equals("-")) {
+				daemon.watch(FileSystems.getDefault().getPath(args[2]));
+			}
+			if (args.length == 5) {
+				daemon.listen(port);
+			}
+		} catch (IOException e) {
+			LOG.error("Could not start the daemon!", e);
+			daemon.close();
+			client.close();
+			System.exit(1);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			daemon.close();
+			client.close();
+		}));
+		LOG.info("Running up to {} jobs at once", concurrency);
+		
+		try {
+			daemon.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Runs a model in one of the modes of the command line application.
+	 * @param client the client connected to the database of the model
+	 * @param model the model to run
+	 * @param mode the mode, e.g. 'denormalize'
+	 * @param argument the optional fourth argument of the mode, or null
+	 * @param name name of the model, the default run id and output file name
+	 * @return true if the mode completed successfully
+	 * @throws IllegalArgumentException if the mode is unknown
+	 */
+	static boolean run(MongoClient client, DBModel model, String mode, String argument,
+			String name) {
+		
+		MongoDatabase db = client.getDatabase(model.getDBName());
+		String runId = argument != null ? argument : name;
+		boolean success;
+		switch (mode) {
+		case "denormalize":
+			success = DenormalizerFactory.getDenormalizer(client, model.getDBName())
+					.denormalize(model);
+			break;
+		case "merge-join":
+			success = DenormalizerFactory.getMergeJoinDenormalizer(client, model.getDBName(),
+					new DenormalizerConfig()).denormalize(model);
+			break;
+		case "export-jsonl":
+		case "export-bson":
+			Path output = FileSystems.getDefault().getPath(argument != null ? argument
+					: name + (mode.equals("export-jsonl") ? ".jsonl" : ".bson"));
+			try (Sink sink = mode.equals("export-jsonl")
+					? new JsonLinesSink(output) : new BsonFileSink(output)) {
+				/* complete arrays per key, with memory bounded by a batch */
+				success = DenormalizerFactory.getMergeJoinDenormalizer(client, model.getDBName(),
+						new DenormalizerConfig().sink(sink)).denormalize(model);
+			} catch (IOException e) {
+				LOG.error("Could not write to {}", output, e);
+				success = false;
+			}
+			break;
+		case "generate":
+			success = new DatasetGenerator(db)
+					.defaultCount(argument != null ? Long.parseLong(argument) : 10_000)
+					.generate(model);
+			break;
+		case "verify":
+			success = DenormalizerFactory.getVerifier(db, new DenormalizerConfig()
+					.idempotentWrites("idempotent".equals(argument))).verify(model);
+			break;
+		case "coordinate":
+			Coordinator coordinator = new Coordinator(db, ShardTopology.of(client), runId);
+			success = coordinator.plan(model, Runtime.getRuntime().availableProcessors());
+			coordinator.status();
+			break;
+		case "work":
+			success = new Worker(db, ShardTopology.of(client),
+					new DenormalizerConfig().idempotentWrites(true), runId)
+					.work(model);
+			break;
+		case "renormalize":
+			success = DenormalizerFactory.getRenormalizer(db).renormalize(model, false);
+			break;
+		case "renormalize-remove":
+			success = DenormalizerFactory.getRenormalizer(db).renormalize(model, true);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown mode: " + mode);
+		}
+		return success;
+	}
+	
 	private static void printManual() {
 		
 		System.out.println("\nmongodb-denormalizer by @mgackowski\n"
 				+ "For documentation visit: github.com/mgackowski/mongodb-denormalizer\n");
 		
 		System.out.println("Parameters: (1) MongoURI e.g. 'localhost:27017'");
-		System.out.println("            (1) path of JSON file with model.");
+		System.out.println("            (2) path of JSON file with model.");
+		System.out.println("            (3) optional mode: 'denormalize' (default), 'verify',");
+		System.out.println("            'merge-join' (streams joins over indexed keys),");
+		System.out.println("            'renormalize', 'renormalize-remove' (also removes arrays),");
+		System.out.println("            'coordinate' (plans a distributed run), 'work' (joins one),");
+		System.out.println("            'export-jsonl' or 'export-bson' (merge join into a file),");
+		System.out.println("            'generate' (fills empty collections with synthetic data).");
+		System.out.println("            (4) for 'verify': optional 'idempotent' if the run used");
+		System.out.println("            idempotent writes, as 'work' always does.");
+		System.out.println("            (4) optional run id for 'coordinate' and 'work' modes,");
+		System.out.println("            or output file for export modes (defaults to the model");
+		System.out.println("            file name), or documents per collection for 'generate'.");
+		System.out.println("Daemon:     (1) MongoURI (2) 'daemon' (3) directory to watch for");
+		System.out.println("            model files, or '-' for none (4) optional number of");
+		System.out.println("            concurrent jobs, default 4 (5) optional localhost port");
+		System.out.println("            accepting one model per line, in modes other than");
+		System.out.println("            'renormalize', 'renormalize-remove' and 'generate'.");
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,461 @@
+package com.mgackowski.mongoutil.cli;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.Document;
+
+import com.mgackowski.mongoutil.model.DBModel;
+import com.mongodb.MongoClient;
+
+/**
+ * Runs models submitted as jobs in a long-running JVM, sharing one client and
+ * its connection pool, so that many small models do not each pay for JVM
+ * startup, warm-up and new connections. A job is a JSON model, as read by
+ * {@link ModelAdaptor}, with two optional fields: {@code "mode"} (any mode of
+ * the command line application, 'denormalize' by default) and
+ * {@code "argument"} (its fourth argument). Jobs are accepted from:
+ * <ul><li>a watched directory: every {@code *.json} file created in it is
+ * renamed after its job, e.g. {@code tenant.json} to {@code tenant-7.json},
+ * and moved to {@code running/}, then to {@code done/} or {@code failed/}
+ * along with a {@code .status} file reporting the job; write files elsewhere
+ * and move them in, so that partial files are never read,</li>
+ * <li>a socket on the loopback interface: every line is a job, answered with
+ * a line reporting the job once queued and once done; the line
+ * {@code status} is answered with a line per recent job. Any local process
+ * can connect, so only the modes in {@link #SOCKET_MODES} are accepted, and
+ * exports are written to a file name in the daemon's working directory, not
+ * to an arbitrary path.</li></ul>
+ * The name of a job, e.g. {@code tenant-7} or {@code socket-51234-8}, is its
+ * default run id and export file name, so jobs which should share a run, such
+ * as {@code coordinate} and {@code work}, need the run id as their argument.
+ * At most the configured number of jobs run at once; the others wait in
+ * order of submission.
+ */
+public class Daemon implements Closeable {
+
+	private static final Logger LOG = LogManager.getLogger(Daemon.class);
+
+	static final String RUNNING = "running";
+	static final String DONE = "done";
+	static final String FAILED = "failed";
+
+	/**
+	 * Modes accepted over the socket; renormalizing and generating data, which
+	 * rewrite collections, are only accepted from the watched directory.
+	 */
+	public static final Set<String> SOCKET_MODES = Collections.unmodifiableSet(new LinkedHashSet<>(
+			Arrays.asList("denormalize", "merge-join", "verify", "export-jsonl", "export-bson",
+					"coordinate", "work")));
+
+	private static final int HISTORY_SIZE = 1000;
+
+	private final MongoClient client;
+	private final ExecutorService jobs;
+	private final ExecutorService listeners = Executors.newCachedThreadPool();
+	private final List<Closeable> sources = new CopyOnWriteArrayList<>();
+	private final AtomicLong ids = new AtomicLong();
+	private final CountDownLatch closed = new CountDownLatch(1);
+	private final Map<Long, Job> history = new LinkedHashMap<Long, Job>() {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Job> eldest) {
+			return size() > HISTORY_SIZE;
+		}
+	};
+
+	private volatile int port;
+
+	/**
+	 * @param client the client shared by all jobs; its pool should allow
+	 * enough connections for the concurrent jobs (see the {@code maxPoolSize}
+	 * option of the connection string)
+	 * @param concurrency maximum number of jobs running at once
+	 */
+	public Daemon(MongoClient client, int concurrency) {
+		this.client = client;
+		this.jobs = Executors.newFixedThreadPool(concurrency);
+	}
+
+	/**
+	 * Runs the model files already in the directory, then every model file
+	 * created in it until the daemon is closed.
+	 * @param directory the directory to watch; subdirectories for running,
+	 * done and failed jobs are created in it
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 * @throws IOException if the directory cannot be watched
+	 */
+	public Daemon watch(Path directory) throws IOException {
+		Files.createDirectories(directory.resolve(RUNNING));
+		Files.createDirectories(directory.resolve(DONE));
+		Files.createDirectories(directory.resolve(FAILED));
+		try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory.resolve(RUNNING))) {
+			for (Path file : stale) {
+				LOG.warn("Not resuming {}, left running by a previous daemon", file);
+			}
+		}
+
+		WatchService watcher = directory.getFileSystem().newWatchService();
+		directory.register(watcher, ENTRY_CREATE);
+		sources.add(watcher);
+		scan(directory);
+		listeners.execute(() -> watchFiles(directory, watcher));
+		LOG.info("Watching {} for models", directory);
+		return this;
+	}
+
+	/**
+	 * Accepts jobs from connections to a port on the loopback interface until
+	 * the daemon is closed.
+	 * @param port the port, or 0 for any free port
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 * @throws IOException if the port cannot be bound
+	 */
+	public Daemon listen(int port) throws IOException {
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		sources.add(server);
+		this.port = server.getLocalPort();
+		listeners.execute(() -> accept(server));
+		LOG.info("Listening for models on {}", server.getLocalSocketAddress());
+		return this;
+	}
+
+	/**
+	 * Waits until the daemon is closed, e.g. by a shutdown hook.
+	 */
+	public void await() throws InterruptedException {
+		closed.await();
+	}
+
+	/**
+	 * Stops accepting jobs and waits for queued and running jobs to finish.
+	 */
+	@Override
+	public void close() {
+		for (Closeable source : sources) {
+			try {
+				source.close();
+			} catch (IOException e) {
+				LOG.warn("Could not close {}: {}", source, e.toString());
+			}
+		}
+		listeners.shutdownNow();
+		jobs.shutdown();
+		try {
+			while (!jobs.awaitTermination(10, TimeUnit.SECONDS)) {
+				LOG.info("Waiting for jobs to finish: {}", running());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		closed.countDown();
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return the most recent jobs, oldest first
+	 */
+	List<Job> jobs() {
+		synchronized (history) {
+			return new ArrayList<>(history.values());
+		}
+	}
+
+	/**
+	 * Queues a job, or fails it at once if the model cannot be read or, for a
+	 * job received over the socket, if its mode or output is not accepted.
+	 * @param id the id of the job, see {@link #nextId()}
+	 * @param name name of the job, the default run id and output file name
+	 * @param json the model with the optional mode and argument
+	 * @param remote true if the job was received over the socket
+	 * @param done called once the job has succeeded or failed
+	 */
+	Job submit(long id, String name, String json, boolean remote, Consumer<Job> done) {
+
+		String mode;
+		String argument;
+		DBModel model;
+		try {
+			Document document = Document.parse(json);
+			mode = document.get("mode", "denormalize");
+			argument = document.getString("argument");
+			model = ModelAdaptor.toDBModel(document);
+		} catch (RuntimeException e) {
+			Job job = register(id, name, "unknown");
+			job.failed("Invalid model: " + e);
+			report(job, done);
+			return job;
+		}
+
+		Job job = register(id, name, mode);
+		String refused = remote ? refused(mode, argument) : null;
+		if (refused != null) {
+			job.failed(refused);
+			report(job, done);
+			return job;
+		}
+		try {
+			jobs.execute(() -> run(job, model, argument, done));
+		} catch (RejectedExecutionException e) {
+			job.failed("Daemon is closing");
+			report(job, done);
+		}
+		return job;
+	}
+
+	/**
+	 * @return why a job received over the socket is refused, or null if it
+	 * is accepted
+	 */
+	private static String refused(String mode, String argument) {
+		if (!SOCKET_MODES.contains(mode)) {
+			return "Mode '" + mode + "' is not accepted over the socket, only " + SOCKET_MODES
+					+ "; submit it as a file instead";
+		}
+		if (mode.startsWith("export-") && argument != null && !isFileName(argument)) {
+			return "Output '" + argument + "' is not accepted over the socket; give a file name, "
+					+ "which is written to the daemon's working directory";
+		}
+		return null;
+	}
+
+	private static boolean isFileName(String argument) {
+		try {
+			Path path = Paths.get(argument);
+			return !argument.startsWith(".") && path.getFileName() != null
+					&& path.equals(path.getFileName());
+		} catch (InvalidPathException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the id of the next job, included in its name so that jobs
+	 * never share a run id, output file or status report
+	 */
+	private long nextId() {
+		return ids.incrementAndGet();
+	}
+
+	private Job register(long id, String name, String mode) {
+		Job job = new Job(id, name, mode);
+		synchronized (history) {
+			history.put(job.getId(), job);
+		}
+		return job;
+	}
+
+	private void run(Job job, DBModel model, String argument, Consumer<Job> done) {
+		job.started();
+		LOG.info("{}", job);
+		try {
+			job.finished(App.run(client, model, job.getMode(), argument, job.getName()));
+		} catch (Throwable e) {
+			/* also errors, so that no file stays running and no client waits forever */
+			job.failed(e.toString());
+		}
+		report(job, done);
+	}
+
+	private void report(Job job, Consumer<Job> done) {
+		if (job.getStatus() == Job.Status.FAILED) {
+			LOG.error("{}", job);
+		} else {
+			LOG.info("{}", job);
+		}
+		done.accept(job);
+	}
+
+	private List<Job> running() {
+		List<Job> running = jobs();
+		running.removeIf(Job::isDone);
+		return running;
+	}
+
+	/* Watched directory */
+
+	private void watchFiles(Path directory, WatchService watcher) {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == OVERFLOW) {
+						scan(directory);
+						continue;
+					}
+					Path file = directory.resolve((Path) event.context());
+					if (file.getFileName().toString().endsWith(".json")) {
+						submitFile(file);
+					}
+				}
+				if (!key.reset()) {
+					LOG.error("Stopped watching {}, which is no longer accessible", directory);
+					return;
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			/* the daemon is closing */
+		} catch (IOException e) {
+			LOG.error("Stopped watching {}", directory, e);
+		}
+	}
+
+	private void scan(Path directory) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.json")) {
+			for (Path file : files) {
+				submitFile(file);
+			}
+		}
+	}
+
+	/**
+	 * Claims a model file by moving it to the running directory, so that a
+	 * file reported both by a scan and by the watcher only runs once. The file
+	 * is renamed after the job, e.g. {@code tenant.json} to
+	 * {@code tenant-7.json}, so that files submitted with the same name never
+	 * replace each other's report or output.
+	 */
+	private void submitFile(Path file) {
+		long id = nextId();
+		String fileName = file.getFileName().toString();
+		String name = fileName.substring(0, fileName.length() - ".json".length()) + "-" + id;
+		Path claimed = file.resolveSibling(RUNNING).resolve(name + ".json");
+		String json;
+		try {
+			Files.move(file, claimed, ATOMIC_MOVE);
+			json = new String(Files.readAllBytes(claimed), UTF_8);
+		} catch (NoSuchFileException e) {
+			return;
+		} catch (IOException e) {
+			LOG.error("Could not read {}", file, e);
+			return;
+		}
+		submit(id, name, json, false, job -> fileDone(claimed, job));
+	}
+
+	private void fileDone(Path claimed, Job job) {
+		Path directory = claimed.getParent().resolveSibling(
+				job.getStatus() == Job.Status.SUCCEEDED ? DONE : FAILED);
+		String name = claimed.getFileName().toString();
+		try {
+			if (Files.exists(directory.resolve(name))) {
+				LOG.warn("Replacing {} of an earlier daemon with {}", directory.resolve(name), job);
+			}
+			Files.move(claimed, directory.resolve(name), REPLACE_EXISTING);
+			Files.write(directory.resolve(name + ".status"),
+					job.toJson().getBytes(UTF_8));
+		} catch (IOException e) {
+			LOG.error("Could not report {} next to {}", job, claimed, e);
+		}
+	}
+
+	/* Socket */
+
+	private void accept(ServerSocket server) {
+		while (!server.isClosed()) {
+			try {
+				Socket socket = server.accept();
+				listeners.execute(() -> serve(socket));
+			} catch (IOException | RejectedExecutionException e) {
+				if (!server.isClosed()) {
+					LOG.warn("Could not accept a connection: {}", e.toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Submits every line of a connection as a job, and keeps the connection
+	 * open until the jobs are done so that their reports can be sent.
+	 */
+	private void serve(Socket socket) {
+		String name = "socket-" + socket.getPort();
+		List<Job> submitted = new ArrayList<>();
+		try (Socket connection = socket;
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(connection.getInputStream(), UTF_8));
+				PrintWriter out = new PrintWriter(
+						new OutputStreamWriter(connection.getOutputStream(), UTF_8), true)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty()) {
+					continue;
+				}
+				if (line.equals("status")) {
+					for (Job job : jobs()) {
+						reply(out, job);
+					}
+					continue;
+				}
+				/* the queued report always precedes the done report */
+				synchronized (out) {
+					long id = nextId();
+					Job job = submit(id, name + "-" + id, line, true, done -> reply(out, done));
+					if (!job.isDone()) {
+						reply(out, job);
+					}
+					submitted.add(job);
+				}
+			}
+			for (Job job : submitted) {
+				job.await();
+			}
+		} catch (IOException e) {
+			LOG.warn("Connection {} closed: {}", name, e.toString());
+		} catch (InterruptedException e) {
+			/* the daemon is closing */
+		}
+	}
+
+	private static void reply(PrintWriter out, Job job) {
+		synchronized (out) {
+			out.println(job.toJson());
+		}
+	}
+
+}
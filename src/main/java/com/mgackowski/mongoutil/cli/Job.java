@@ -0,0 +1,127 @@
+package com.mgackowski.mongoutil.cli;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+/**
+ * A model submitted to the {@link Daemon}, with its status and timing.
+ */
+class Job {
+
+	enum Status { QUEUED, RUNNING, SUCCEEDED, FAILED }
+
+	private static final JsonWriterSettings JSON = JsonWriterSettings.builder()
+			.outputMode(JsonMode.RELAXED)
+			.build();
+
+	private final long id;
+	private final String name;
+	private final String mode;
+	private final long submitted = System.currentTimeMillis();
+
+	private volatile Status status = Status.QUEUED;
+	private volatile long started;
+	private volatile long finished;
+	private volatile String error;
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	Job(long id, String name, String mode) {
+		this.id = id;
+		this.name = name;
+		this.mode = mode;
+	}
+
+	void started() {
+		started = System.currentTimeMillis();
+		status = Status.RUNNING;
+	}
+
+	void finished(boolean success) {
+		finished = System.currentTimeMillis();
+		status = success ? Status.SUCCEEDED : Status.FAILED;
+		done.countDown();
+	}
+
+	void failed(String error) {
+		this.error = error;
+		finished(false);
+	}
+
+	long getId() {
+		return id;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	String getMode() {
+		return mode;
+	}
+
+	Status getStatus() {
+		return status;
+	}
+
+	boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Waits until the job has succeeded or failed.
+	 */
+	void await() throws InterruptedException {
+		done.await();
+	}
+
+	/**
+	 * @return milliseconds spent waiting for a free slot, so far if the job
+	 * is still queued
+	 */
+	long getQueuedMillis() {
+		long until = started != 0 ? started : finished != 0 ? finished : System.currentTimeMillis();
+		return until - submitted;
+	}
+
+	/**
+	 * @return milliseconds spent running, so far if the job is still running
+	 */
+	long getRunMillis() {
+		if (started == 0) {
+			return 0;
+		}
+		return (finished != 0 ? finished : System.currentTimeMillis()) - started;
+	}
+
+	/**
+	 * @return the status report of the job, as written to status files and
+	 * socket clients
+	 */
+	String toJson() {
+		return toDocument().toJson(JSON);
+	}
+
+	Document toDocument() {
+		Document report = new Document("job", id)
+				.append("name", name)
+				.append("mode", mode)
+				.append("status", status.name())
+				.append("queuedMs", getQueuedMillis())
+				.append("runMs", getRunMillis());
+		if (error != null) {
+			report.append("error", error);
+		}
+		return report;
+	}
+
+	@Override
+	public String toString() {
+		return "Job " + id + " '" + name + "' (" + mode + ") " + status +
+				", queued " + getQueuedMillis() + " ms, ran " + getRunMillis() + " ms" +
+				(error != null ? ": " + error : "");
+	}
+
+}
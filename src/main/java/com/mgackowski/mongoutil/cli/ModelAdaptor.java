@@ -49,6 +49,29 @@ public class ModelAdaptor {
 		for(Object e : embed) {
 			joinModel.embed((String) e);
 		}
+		Document lookup = (Document) join.get("lookup");
+		if (lookup != null) {
+			List<Object> fields = (List<Object>) lookup.get("fields");
+			joinModel.lookup(lookup.getString("collection"),
+					fields.toArray(new String[fields.size()]));
+		}
+		Document route = (Document) join.get("route");
+		if (route != null) {
+			for (String field : route.keySet()) {
+				joinModel.route(field, route.getString(field));
+			}
+		}
+		Document filter = (Document) join.get("filter");
+		if (filter != null) {
+			joinModel.where(filter);
+		}
+		Document targetFilter = (Document) join.get("targetFilter");
+		if (targetFilter != null) {
+			joinModel.whereTarget(targetFilter);
+		}
+		if (join.getBoolean("coerceKeys", false)) {
+			joinModel.coerceKeys();
+		}
 		
 		return joinModel;
 	}
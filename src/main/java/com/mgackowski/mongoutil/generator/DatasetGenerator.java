@@ -0,0 +1,354 @@
+package com.mgackowski.mongoutil.generator;
+
+import static com.mongodb.client.model.Indexes.ascending;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mgackowski.mongoutil.model.CollModel;
+import com.mgackowski.mongoutil.model.DBModel;
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Populates a database with synthetic documents shaped after a
+ * {@link DBModel}, so that Denormalizers can be run and compared at
+ * production scale on a local MongoDB. All settings have defaults, e.g.:<br>
+ * <code>new DatasetGenerator(db).count("books", 10_000_000).fanout(Fanout.zipf(1.1)).generate(model)</code>
+ * <p>
+ * For every join of the model:
+ * <ul><li>target documents get the target key, numbered from 0 up to the
+ * number of target documents, in the configured key type,</li>
+ * <li>source documents get a foreign key drawn from the target keys according
+ * to the {@link Fanout}, and a unique value for the referenced field unless it
+ * is another foreign key or references a looked-up collection, whose keys are
+ * then drawn according to the {@link Fanout} as well,</li>
+ * <li>embedded and looked-up fields are filled with random text.</li></ul>
+ * Every document also gets the configured number of filler fields. Both join
+ * keys are indexed, as they would be in a well-kept production database.
+ */
+public class DatasetGenerator {
+
+	private static final Logger LOG = LogManager.getLogger(DatasetGenerator.class);
+
+	private static final int TEXT_POOL_SIZE = 1 << 16;
+	private static final String ALPHABET =
+			"abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 ";
+
+	private MongoDatabase db;
+	private Map<String, Long> counts = new HashMap<>();
+	private long defaultCount = 10_000;
+	private Fanout fanout = Fanout.uniform();
+	private BsonType keyType = BsonType.INT64;
+	private int fillerFields = 5;
+	private int fieldLength = 16;
+	private int batchSize = 1000;
+	private long seed = 42;
+	private boolean dropExisting = false;
+
+	/**
+	 * @param db the database to populate
+	 */
+	public DatasetGenerator(MongoDatabase db) {
+		this.db = db;
+	}
+
+	/**
+	 * @param collection name of a collection in the model
+	 * @param documents number of documents to generate in it
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DatasetGenerator count(String collection, long documents) {
+		counts.put(collection, documents);
+		return this;
+	}
+
+	/**
+	 * @param documents number of documents to generate in collections without
+	 * their own count (default 10,000)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DatasetGenerator defaultCount(long documents) {
+		this.defaultCount = documents;
+		return this;
+	}
+
+	/**
+	 * @param fanout distribution of foreign keys over target keys (default
+	 * uniform)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DatasetGenerator fanout(Fanout fanout) {
+		this.fanout = fanout;
+		return this;
+	}
+
+	/**
+	 * @param keyType BSON type of all join keys: INT32, INT64 (default),
+	 * STRING or OBJECT_ID
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DatasetGenerator keyType(BsonType keyType) {
+		switch (keyType) {
+		case INT32:
+		case INT64:
+		case STRING:
+		case OBJECT_ID:
+			this.keyType = keyType;
+			return this;
+		default:
+			throw new IllegalArgumentException("Unsupported key type: " + keyType);
+		}
+	}
+
+	/**
+	 * @param fillerFields number of random text fields added to every
+	 * document (default 5)
+	 * @param fieldLength length of every random text field (default 16)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DatasetGenerator width(int fillerFields, int fieldLength) {
+		this.fillerFields = fillerFields;
+		this.fieldLength = Math.min(fieldLength, TEXT_POOL_SIZE);
+		return this;
+	}
+
+	/**
+	 * @param batchSize number of documents per bulk insert (default 1000)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DatasetGenerator batchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * @param seed seed of the random generator, so that runs with the same
+	 * settings generate the same documents (default 42)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DatasetGenerator seed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * @param dropExisting true to drop collections of the model that already
+	 * hold documents; otherwise generation is refused (default false)
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DatasetGenerator dropExisting(boolean dropExisting) {
+		this.dropExisting = dropExisting;
+		return this;
+	}
+
+	/**
+	 * Generates the documents of every collection in the model – sources,
+	 * targets and looked-up collections – with bulk inserts, and indexes the
+	 * join keys.
+	 * @param model the model whose collections are generated
+	 * @return true if all collections were generated
+	 */
+	public boolean generate(DBModel model) {
+
+		if (!model.validateAll()) {
+			LOG.error("Model validation failed, nothing generated. {}", model);
+			return false;
+		}
+
+		Map<String, CollectionPlan> plans = plan(model);
+
+		for (String name : plans.keySet()) {
+			MongoCollection<Document> collection = db.getCollection(name);
+			if (collection.count() > 0) {
+				if (!dropExisting) {
+					LOG.error("Collection '{}' is not empty, nothing generated; "
+							+ "use dropExisting(true) to replace it", name);
+					return false;
+				}
+				LOG.info("Dropping collection '{}'", name);
+				collection.drop();
+			}
+		}
+
+		String textPool = textPool(new SplittableRandom(seed));
+		SplittableRandom random = new SplittableRandom(seed);
+		for (CollectionPlan plan : plans.values()) {
+			insert(plan, random.split(), textPool);
+		}
+		for (CollectionPlan plan : plans.values()) {
+			MongoCollection<Document> collection = db.getCollection(plan.name);
+			for (String field : plan.indexed) {
+				if (!field.equals("_id")) {
+					collection.createIndex(ascending(field));
+				}
+			}
+		}
+		LOG.info("Generated {} collections with fanout {} and {} keys",
+				plans.size(), fanout, keyType);
+		return true;
+	}
+
+	private Map<String, CollectionPlan> plan(DBModel model) {
+
+		Map<String, CollectionPlan> plans = new LinkedHashMap<>();
+		for (CollModel collModel : model.getCollections()) {
+			CollectionPlan source = plans.computeIfAbsent(collModel.getName(), this::newPlan);
+			for (JoinModel join : collModel.getJoins()) {
+				CollectionPlan target = plans.computeIfAbsent(join.getTargetCollection(), this::newPlan);
+				target.keys.add(join.getTargetLinkColumn());
+				target.indexed.add(join.getTargetLinkColumn());
+				source.foreignKeys.put(join.getSourceForeignKeyColumn(), target);
+				source.indexed.add(join.getSourceForeignKeyColumn());
+				source.text.addAll(join.getEmbeddedFields());
+				if (join.getLookupCollection() != null) {
+					CollectionPlan lookup = plans.computeIfAbsent(join.getLookupCollection(), this::newPlan);
+					lookup.keys.add("_id");
+					lookup.text.addAll(join.getLookupFields());
+					/* a source _id cannot repeat; a foreign key of another join wins */
+					if (!join.getSourceLinkColumn().equals("_id")) {
+						source.lookupKeys.put(join.getSourceLinkColumn(), lookup);
+					}
+				}
+			}
+		}
+		for (CollectionPlan plan : plans.values()) {
+			plan.lookupKeys.forEach(plan.foreignKeys::putIfAbsent);
+		}
+		for (CollModel collModel : model.getCollections()) {
+			CollectionPlan source = plans.get(collModel.getName());
+			for (JoinModel join : collModel.getJoins()) {
+				if (!source.foreignKeys.containsKey(join.getSourceLinkColumn())) {
+					source.keys.add(join.getSourceLinkColumn());
+				}
+			}
+		}
+		for (CollectionPlan plan : plans.values()) {
+			plan.keys.removeAll(plan.foreignKeys.keySet());
+			plan.text.removeAll(plan.keys);
+			plan.text.removeAll(plan.foreignKeys.keySet());
+		}
+		return plans;
+	}
+
+	private CollectionPlan newPlan(String name) {
+		long count = counts.getOrDefault(name, defaultCount);
+		if (keyType == BsonType.INT32 && count > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many documents for INT32 keys in " + name);
+		}
+		return new CollectionPlan(name, count);
+	}
+
+	private void insert(CollectionPlan plan, SplittableRandom random, String textPool) {
+
+		LOG.info("Generating {} documents in '{}': keys {}, foreign keys {}, text {}",
+				plan.count, plan.name, plan.keys, plan.foreignKeys.keySet(), plan.text);
+
+		Map<String, KeySampler> samplers = new LinkedHashMap<>();
+		plan.foreignKeys.forEach((field, target) -> samplers.put(field, fanout.sampler(target.count)));
+
+		MongoCollection<Document> collection = db.getCollection(plan.name);
+		InsertManyOptions unordered = new InsertManyOptions().ordered(false);
+		long started = System.nanoTime();
+		List<Document> batch = new ArrayList<>(batchSize);
+		for (long i = 0; i < plan.count; i++) {
+			Document doc = new Document();
+			for (String field : plan.keys) {
+				doc.append(field, key(i));
+			}
+			for (Map.Entry<String, KeySampler> foreignKey : samplers.entrySet()) {
+				doc.append(foreignKey.getKey(), key(foreignKey.getValue().next(random)));
+			}
+			for (String field : plan.text) {
+				doc.append(field, text(textPool, random));
+			}
+			for (int f = 0; f < fillerFields; f++) {
+				doc.append("filler" + f, text(textPool, random));
+			}
+			batch.add(doc);
+			if (batch.size() == batchSize) {
+				collection.insertMany(batch, unordered);
+				batch = new ArrayList<>(batchSize);
+			}
+			if ((i + 1) % 1_000_000 == 0) {
+				LOG.info("   {} of {} documents in '{}'", i + 1, plan.count, plan.name);
+			}
+		}
+		if (!batch.isEmpty()) {
+			collection.insertMany(batch, unordered);
+		}
+
+		long elapsed = Math.max((System.nanoTime() - started) / 1_000_000, 1);
+		LOG.info("Inserted {} documents into '{}' in {} ms ({} docs/s)",
+				plan.count, plan.name, elapsed, plan.count * 1000 / elapsed);
+	}
+
+	/**
+	 * @return the i-th key in the configured type; keys of the same index are
+	 * equal across collections, so foreign keys always find their target
+	 */
+	private Object key(long i) {
+		switch (keyType) {
+		case INT32:
+			return (int) i;
+		case STRING:
+			return Long.toString(i);
+		case OBJECT_ID:
+			return new ObjectId(ByteBuffer.allocate(12).putInt(0).putLong(i).array());
+		default:
+			return i;
+		}
+	}
+
+	/**
+	 * @return random text, cut from a pool of random characters at a random
+	 * offset, which is much cheaper than generating every character
+	 */
+	private String text(String textPool, SplittableRandom random) {
+		int offset = random.nextInt(TEXT_POOL_SIZE - fieldLength + 1);
+		return textPool.substring(offset, offset + fieldLength);
+	}
+
+	private static String textPool(SplittableRandom random) {
+		StringBuilder pool = new StringBuilder(TEXT_POOL_SIZE);
+		for (int i = 0; i < TEXT_POOL_SIZE; i++) {
+			pool.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return pool.toString();
+	}
+
+	/**
+	 * Fields to generate in a single collection, collected from every join
+	 * the collection takes part in.
+	 */
+	private static class CollectionPlan {
+		final String name;
+		final long count;
+		final Set<String> keys = new LinkedHashSet<>();
+		final Map<String, CollectionPlan> foreignKeys = new LinkedHashMap<>();
+		final Map<String, CollectionPlan> lookupKeys = new LinkedHashMap<>();
+		final Set<String> text = new LinkedHashSet<>();
+		final Set<String> indexed = new LinkedHashSet<>();
+
+		CollectionPlan(String name, long count) {
+			this.name = name;
+			this.count = count;
+		}
+	}
+
+}
@@ -0,0 +1,55 @@
+package com.mgackowski.mongoutil.generator;
+
+/**
+ * Distribution of foreign key values over the keys of a target collection,
+ * which determines how many source documents reference each target document
+ * – and so the length of the arrays built by a Denormalizer.
+ */
+public final class Fanout {
+
+	private final double exponent;
+
+	private Fanout(double exponent) {
+		this.exponent = exponent;
+	}
+
+	/**
+	 * Every target key is equally likely to be referenced, so arrays have
+	 * roughly the same length.
+	 */
+	public static Fanout uniform() {
+		return new Fanout(0);
+	}
+
+	/**
+	 * The k-th most referenced target key is referenced with a probability
+	 * proportional to 1/k<sup>exponent</sup>, so a few hot keys gain very long
+	 * arrays while most keys gain short ones, as is typical of production
+	 * data (e.g. customers and their orders).
+	 * @param exponent skew of the distribution, greater than 0; around 1 for
+	 * realistic data, higher for more extreme hot keys
+	 */
+	public static Fanout zipf(double exponent) {
+		if (!(exponent > 0)) {
+			throw new IllegalArgumentException("Zipf exponent must be greater than 0: " + exponent);
+		}
+		return new Fanout(exponent);
+	}
+
+	/**
+	 * @param keys number of keys in the target collection
+	 * @return a sampler of key indexes in the range [0, keys)
+	 */
+	KeySampler sampler(long keys) {
+		if (exponent == 0) {
+			return random -> random.nextLong(keys);
+		}
+		return new ZipfSampler(keys, exponent);
+	}
+
+	@Override
+	public String toString() {
+		return exponent == 0 ? "uniform" : "zipf(" + exponent + ")";
+	}
+
+}
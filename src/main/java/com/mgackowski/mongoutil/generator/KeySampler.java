@@ -0,0 +1,16 @@
+package com.mgackowski.mongoutil.generator;
+
+import java.util.SplittableRandom;
+
+/**
+ * Draws indexes of target keys according to a {@link Fanout}.
+ */
+@FunctionalInterface
+interface KeySampler {
+
+	/**
+	 * @return an index in the range [0, keys)
+	 */
+	long next(SplittableRandom random);
+
+}
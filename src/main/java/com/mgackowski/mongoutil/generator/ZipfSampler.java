@@ -0,0 +1,71 @@
+package com.mgackowski.mongoutil.generator;
+
+import java.util.SplittableRandom;
+
+/**
+ * Samples a Zipf distribution over a large number of keys in constant time
+ * and memory, using rejection-inversion (W. Hörmann, G. Derflinger:
+ * "Rejection-inversion to generate variates from monotone discrete
+ * distributions", 1996) – so that key spaces of many millions need no
+ * cumulative probability table.
+ */
+class ZipfSampler implements KeySampler {
+
+	private final long keys;
+	private final double exponent;
+	private final double hIntegralX1;
+	private final double hIntegralKeys;
+	private final double s;
+
+	ZipfSampler(long keys, double exponent) {
+		this.keys = keys;
+		this.exponent = exponent;
+		this.hIntegralX1 = hIntegral(1.5) - 1;
+		this.hIntegralKeys = hIntegral(keys + 0.5);
+		this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+	}
+
+	@Override
+	public long next(SplittableRandom random) {
+		while (true) {
+			double u = hIntegralKeys + random.nextDouble() * (hIntegralX1 - hIntegralKeys);
+			double x = hIntegralInverse(u);
+			long k = Math.max(1, Math.min(keys, (long) (x + 0.5)));
+			if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+				return k - 1;
+			}
+		}
+	}
+
+	/** Integral of h, the continuous counterpart of the probability function. */
+	private double hIntegral(double x) {
+		double logX = Math.log(x);
+		return helper2((1 - exponent) * logX) * logX;
+	}
+
+	private double h(double x) {
+		return Math.exp(-exponent * Math.log(x));
+	}
+
+	private double hIntegralInverse(double x) {
+		double t = Math.max(x * (1 - exponent), -1);
+		return Math.exp(helper1(t) * x);
+	}
+
+	/** log(1 + x) / x, accurate for x close to 0. */
+	private static double helper1(double x) {
+		if (Math.abs(x) > 1e-8) {
+			return Math.log1p(x) / x;
+		}
+		return 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+	}
+
+	/** (exp(x) - 1) / x, accurate for x close to 0. */
+	private static double helper2(double x) {
+		if (Math.abs(x) > 1e-8) {
+			return Math.expm1(x) / x;
+		}
+		return 1 + x * 0.5 * (1 + x * (1.0 / 3) * (1 + 0.25 * x));
+	}
+
+}
@@ -6,6 +6,8 @@ import java.util.List;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.mongodb.client.MongoDatabase;
+
 /**
  * Models the MongoDB collections and relationships between them.
  * @author mgackowski
@@ -17,6 +19,8 @@ public class DBModel {
 	
 	private String dbName;
 	private List<CollModel> collections = new ArrayList<>();
+	private int sampleSize = 1000;
+	private double minMatchRate = 0.01;
 	
 	public DBModel() {}
 
@@ -29,6 +33,20 @@ public class DBModel {
 		return this;
 	}
 	
+	/**
+	 * Configures the pre-flight check run by {@link #validateAll(MongoDatabase)}.
+	 * @param sampleSize number of documents sampled from each side of a join;
+	 * 0 disables the pre-flight check, and with it {@link JoinModel#coerceKeys()}
+	 * @param minMatchRate the proportion (0 to 1) of sampled source documents
+	 * that must find a target document for the join to proceed
+	 * @return itself to allow chaining methods (see Fluent API concept).
+	 */
+	public DBModel preflight(int sampleSize, double minMatchRate) {
+		this.sampleSize = sampleSize;
+		this.minMatchRate = minMatchRate;
+		return this;
+	}
+
 	public List<CollModel> getCollections() {
 		return collections;
 	}
@@ -54,6 +72,47 @@ public class DBModel {
 		}
 		return valid;
 	}
+
+	/**
+	 * Validates the model as {@link #validateAll()} does, then samples the
+	 * collections of every join to compare the BSON types of the join keys,
+	 * check that referenced and embedded fields are present, and estimate
+	 * how many source documents will find a match. Catches joins that would
+	 * silently match nothing before a full pass is made.
+	 * @param db the database the model will be applied to
+	 * @return true if the model is complete and the estimated match rate of
+	 * every join is at least the configured minimum
+	 * @see #preflight(int, double)
+	 */
+	public boolean validateAll(MongoDatabase db) {
+		if (!validateAll()) {
+			return false;
+		}
+		if (sampleSize <= 0) {
+			boolean valid = true;
+			for (CollModel collection : collections) {
+				for (JoinModel join : collection.getJoins()) {
+					if (join.isCoercingKeys() && join.getTargetKeyType() == null) {
+						LOG.error("Cannot coerce keys to an unknown type: the target key type "
+								+ "is detected by the pre-flight check, which is disabled; join={}", join);
+						valid = false;
+					}
+				}
+			}
+			return valid;
+		}
+		SchemaSampler sampler = new SchemaSampler(db, sampleSize, minMatchRate);
+		boolean valid = true;
+		for (CollModel collection : collections) {
+			for (JoinModel join : collection.getJoins()) {
+				if (!sampler.check(collection.getName(), join)) {
+					LOG.error("Pre-flight check failed for collection model: {}", collection);
+					valid = false;
+				}
+			}
+		}
+		return valid;
+	}
 	
 	@Override
 	public String toString() {
@@ -1,10 +1,19 @@
 package com.mgackowski.mongoutil.model;
 
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bson.BsonType;
+import org.bson.conversions.Bson;
 
 /**
  * Models a desired relationship between two collections.
@@ -31,6 +40,15 @@ public class JoinModel {
 	private String sourceLinkColumn;
 	private String targetNewArrayName;
 	private List<String> embeddedFields = new ArrayList<String>();
+	private String lookupCollection;
+	private List<String> lookupFields = new ArrayList<String>();
+	private Map<String, String> routing = new LinkedHashMap<String, String>();
+	private Bson sourceFilter;
+	private Bson targetFilter;
+	private boolean coerceKeys;
+	/* set by the pre-flight check, read by concurrent transformer threads */
+	private volatile BsonType targetKeyType;
+	private volatile boolean unknownTypeWarned;
 
 
 	/**
@@ -120,6 +138,128 @@ public class JoinModel {
 		return this;
 	}
 
+	/**
+	 * (Optional) Designates fields of a third collection that should be
+	 * inserted into the target collection's array as part of an embedded
+	 * document, looked up by the value of the referenced field
+	 * (see {@link #reference(String)}) in the third collection's {@code _id}.
+	 * <p>
+	 * Useful for link tables in many–to–many relationships, where the source
+	 * collection only holds the identifier of the third collection's document;
+	 * e.g. embedding the name and date of each release in an array of
+	 * products' releases. Like {@link #embed(String)}, this changes the target
+	 * data structure to an array of documents.
+	 * @param collection name of the collection referenced by the source field
+	 * @param fields names of the fields to copy over
+	 * @return this JoinModel for chaining more commands (see Fluent APIs)
+	 */
+	public JoinModel lookup(String collection, String... fields) {
+		this.lookupCollection = collection;
+		this.lookupFields.addAll(Arrays.asList(fields));
+		return this;
+	}
+
+	/**
+	 * (Optional) Maps a field of the target collection's shard key to the
+	 * source field holding the same value, so that the update of each target
+	 * document can be routed to a single shard. Fields of the shard key that
+	 * are neither the target key (see {@link #on(String, String)}) nor mapped
+	 * leave updates broadcast to all shards.
+	 * @param targetShardKeyField field of the target's shard key
+	 * @param sourceField field of the source collection with the same value
+	 * @return this JoinModel for chaining more commands (see Fluent APIs)
+	 */
+	public JoinModel route(String targetShardKeyField, String sourceField) {
+		routing.put(targetShardKeyField, sourceField);
+		return this;
+	}
+
+	/**
+	 * (Optional) Limits the join to source documents matching a query, e.g.
+	 * {@code Filters.gte("date", lastYear)}. The query is combined with the
+	 * scan of the source collection, so it is evaluated by the server and can
+	 * use its indexes.
+	 * @param sourceFilter query on the source collection
+	 * @return this JoinModel for chaining more commands (see Fluent APIs)
+	 */
+	public JoinModel where(Bson sourceFilter) {
+		this.sourceFilter = sourceFilter;
+		return this;
+	}
+
+	/**
+	 * (Optional) Limits the target documents that gain the array to those
+	 * matching a query; source documents referencing other target documents
+	 * are skipped.
+	 * @param targetFilter query on the target collection
+	 * @return this JoinModel for chaining more commands (see Fluent APIs)
+	 */
+	public JoinModel whereTarget(Bson targetFilter) {
+		this.targetFilter = targetFilter;
+		return this;
+	}
+
+	/**
+	 * (Optional) Converts the values of the source foreign key to the BSON
+	 * type found in the target collection's key before matching, e.g. the
+	 * string "42" to the int 42, wherever this is possible without loss.
+	 * <p>
+	 * The target key type is detected by sampling the target collection
+	 * during {@link DBModel#validateAll(com.mongodb.client.MongoDatabase)},
+	 * which fails if the pre-flight check is disabled.
+	 * @return this JoinModel for chaining more commands (see Fluent APIs)
+	 */
+	public JoinModel coerceKeys() {
+		this.coerceKeys = true;
+		return this;
+	}
+
+	/**
+	 * Converts a source foreign key value to the type of the target key if
+	 * {@link #coerceKeys()} was set and the target key type is known.
+	 * @param key the value of the source foreign key
+	 * @return the value to look up in the target collection
+	 */
+	public Object coerceKey(Object key) {
+		if (!coerceKeys) {
+			return key;
+		}
+		if (targetKeyType == null) {
+			if (!unknownTypeWarned) {
+				unknownTypeWarned = true;
+				LOG.warn("Keys are not coerced, the target key type is unknown; run "
+						+ "DBModel.validateAll(db) with the pre-flight check enabled first; join={}", this);
+			}
+			return key;
+		}
+		return KeyTypes.coerce(key, targetKeyType);
+	}
+
+	/**
+	 * @return the query selecting source documents that take part in the join
+	 */
+	public Bson sourceQuery() {
+		Bson query = exists(sourceForeignKeyColumn);
+		return sourceFilter == null ? query : and(query, sourceFilter);
+	}
+
+	/**
+	 * @return the query selecting target documents that can gain the array
+	 */
+	public Bson targetQuery() {
+		Bson query = exists(targetLinkColumn);
+		return targetFilter == null ? query : and(query, targetFilter);
+	}
+
+	/**
+	 * @param key value of the target key, as returned by {@link #coerceKey(Object)}
+	 * @return the query selecting the target documents to update for a key
+	 */
+	public Bson targetQuery(Object key) {
+		Bson query = eq(targetLinkColumn, key);
+		return targetFilter == null ? query : and(query, targetFilter);
+	}
+
 	public String getTargetCollection() {
 		return targetCollection;
 	}
@@ -144,6 +284,49 @@ public class JoinModel {
 		return embeddedFields;
 	}
 
+	public String getLookupCollection() {
+		return lookupCollection;
+	}
+
+	public List<String> getLookupFields() {
+		return lookupFields;
+	}
+
+	/**
+	 * @return true if array elements are embedded documents rather than
+	 * plain references
+	 */
+	public boolean isEmbedding() {
+		return !embeddedFields.isEmpty() || lookupCollection != null;
+	}
+
+	/**
+	 * @return source fields by the target shard key field they route by
+	 */
+	public Map<String, String> getRouting() {
+		return routing;
+	}
+
+	public Bson getSourceFilter() {
+		return sourceFilter;
+	}
+
+	public Bson getTargetFilter() {
+		return targetFilter;
+	}
+
+	public boolean isCoercingKeys() {
+		return coerceKeys;
+	}
+
+	public BsonType getTargetKeyType() {
+		return targetKeyType;
+	}
+
+	void setTargetKeyType(BsonType targetKeyType) {
+		this.targetKeyType = targetKeyType;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder verbose = new StringBuilder(
@@ -156,6 +339,21 @@ public class JoinModel {
 			embeddedFields.forEach(field -> verbose.append(" " + field));
 			verbose.append("]");
 		}
+		if (lookupCollection != null) {
+			verbose.append(", lookup=" + lookupCollection + lookupFields);
+		}
+		if (!routing.isEmpty()) {
+			verbose.append(", route=" + routing);
+		}
+		if (sourceFilter != null) {
+			verbose.append(", where=" + sourceFilter);
+		}
+		if (targetFilter != null) {
+			verbose.append(", whereTarget=" + targetFilter);
+		}
+		if (coerceKeys) {
+			verbose.append(", coerceKeys");
+		}
 		verbose.append("]");
 		return verbose.toString();
 	}
@@ -183,6 +381,10 @@ public class JoinModel {
 			LOG.error("Missing field name in target; join={}", this);
 			valid = false;
 		}
+		if (lookupCollection != null && lookupFields.isEmpty()) {
+			LOG.error("Missing field names to look up; join={}", this);
+			valid = false;
+		}
 		return valid;
 	}	
 	
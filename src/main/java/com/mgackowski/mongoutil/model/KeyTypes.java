@@ -0,0 +1,310 @@
+package com.mgackowski.mongoutil.model;
+
+import java.math.BigDecimal;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonTimestamp;
+import org.bson.BsonType;
+import org.bson.types.Binary;
+import org.bson.types.Decimal128;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.bson.types.Symbol;
+
+/**
+ * Helpers for inspecting and converting the BSON types of join key values as
+ * they are decoded by the Java driver.
+ */
+public final class KeyTypes {
+
+	/**
+	 * Orders decoded values as MongoDB sorts them with the simple collation:
+	 * first by type (null, numbers, strings, documents, arrays, binary data,
+	 * object ids, booleans, dates, timestamps), then by value, with numbers of
+	 * different types compared by their numeric value and strings compared by
+	 * code point, i.e. by their UTF-8 bytes.
+	 */
+	public static final Comparator<Object> SORT_ORDER = KeyTypes::compare;
+
+	private KeyTypes() {}
+
+	/**
+	 * @return the BSON type a decoded value was stored as
+	 */
+	public static BsonType typeOf(Object value) {
+		if (value == null) return BsonType.NULL;
+		if (value instanceof Integer) return BsonType.INT32;
+		if (value instanceof Long) return BsonType.INT64;
+		if (value instanceof Double) return BsonType.DOUBLE;
+		if (value instanceof Decimal128) return BsonType.DECIMAL128;
+		if (value instanceof String) return BsonType.STRING;
+		if (value instanceof ObjectId) return BsonType.OBJECT_ID;
+		if (value instanceof Boolean) return BsonType.BOOLEAN;
+		if (value instanceof Date) return BsonType.DATE_TIME;
+		if (value instanceof List) return BsonType.ARRAY;
+		if (value instanceof Map) return BsonType.DOCUMENT;
+		return BsonType.UNDEFINED;
+	}
+
+	/**
+	 * @return the type that keys of the given type are matched as, i.e.
+	 * {@link BsonType#DOUBLE} for every numeric type, since MongoDB matches
+	 * numbers by value whatever type they are stored as
+	 */
+	public static BsonType matchType(BsonType type) {
+		switch (type) {
+		case INT32:
+		case INT64:
+		case DOUBLE:
+		case DECIMAL128:
+			return BsonType.DOUBLE;
+		default:
+			return type;
+		}
+	}
+
+	/**
+	 * Brings numeric values to a common Java type so that keys which MongoDB
+	 * considers equal (e.g. int 1 and long 1) are also equal in Java.
+	 */
+	public static Object normalize(Object value) {
+		if (value instanceof Integer || value instanceof Long) {
+			return ((Number) value).longValue();
+		}
+		if (value instanceof Double) {
+			double d = (Double) value;
+			if (d == Math.rint(d) && !Double.isInfinite(d)) {
+				return (long) d;
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Converts a key value to the given BSON type where this can be done
+	 * without losing information, e.g. the string "42" to the int 42.
+	 * @return the converted value, or the original value if no lossless
+	 * conversion exists
+	 */
+	public static Object coerce(Object value, BsonType type) {
+		if (value == null || typeOf(value) == type) {
+			return value;
+		}
+		try {
+			switch (type) {
+			case INT32:
+				Long asInt = toLong(value);
+				if (asInt != null && asInt >= Integer.MIN_VALUE
+						&& asInt <= Integer.MAX_VALUE) {
+					return asInt.intValue();
+				}
+				break;
+			case INT64:
+				Long asLong = toLong(value);
+				if (asLong != null) {
+					return asLong;
+				}
+				break;
+			case DOUBLE:
+				if (value instanceof Number) {
+					return ((Number) value).doubleValue();
+				}
+				if (value instanceof String) {
+					return Double.parseDouble(((String) value).trim());
+				}
+				break;
+			case STRING:
+				if (value instanceof Number || value instanceof ObjectId) {
+					Object normalized = normalize(value);
+					return normalized.toString();
+				}
+				break;
+			case OBJECT_ID:
+				if (value instanceof String && ObjectId.isValid((String) value)) {
+					return new ObjectId((String) value);
+				}
+				break;
+			default:
+				break;
+			}
+		} catch (NumberFormatException e) {
+			// not representable in the target type; fall through
+		}
+		return value;
+	}
+
+	/**
+	 * Compares two decoded values in MongoDB's sort order.
+	 * @see #SORT_ORDER
+	 */
+	public static int compare(Object a, Object b) {
+		int rankA = sortRank(a);
+		int rankB = sortRank(b);
+		if (rankA != rankB) {
+			return Integer.compare(rankA, rankB);
+		}
+		switch (rankA) {
+		case 2:
+			return compareNumbers(a, b);
+		case 3:
+			return compareStrings(a.toString(), b.toString());
+		case 4:
+			return compareDocuments((Map<?, ?>) a, (Map<?, ?>) b);
+		case 5:
+			return compareArrays((List<?>) a, (List<?>) b);
+		case 6:
+			return compareBinaries(a, b);
+		case 7:
+			return ((ObjectId) a).compareTo((ObjectId) b);
+		case 8:
+			return Boolean.compare((Boolean) a, (Boolean) b);
+		case 9:
+			return ((Date) a).compareTo((Date) b);
+		case 10:
+			return ((BsonTimestamp) a).compareTo((BsonTimestamp) b);
+		default:
+			return 0;
+		}
+	}
+
+	private static int sortRank(Object value) {
+		if (value instanceof MinKey) return 0;
+		if (value == null) return 1;
+		if (value instanceof Number || value instanceof Decimal128) return 2;
+		if (value instanceof String || value instanceof Symbol) return 3;
+		if (value instanceof Map) return 4;
+		if (value instanceof List) return 5;
+		if (value instanceof Binary || value instanceof byte[]) return 6;
+		if (value instanceof ObjectId) return 7;
+		if (value instanceof Boolean) return 8;
+		if (value instanceof Date) return 9;
+		if (value instanceof BsonTimestamp) return 10;
+		if (value instanceof MaxKey) return 12;
+		return 11;
+	}
+
+	private static int compareNumbers(Object a, Object b) {
+		boolean integralA = a instanceof Integer || a instanceof Long;
+		boolean integralB = b instanceof Integer || b instanceof Long;
+		if (integralA && integralB) {
+			return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+		}
+		BigDecimal exactA = toBigDecimal(a);
+		BigDecimal exactB = toBigDecimal(b);
+		if (exactA != null && exactB != null) {
+			return exactA.compareTo(exactB);
+		}
+		/* NaN sorts before all other numbers, infinities at either end */
+		double x = toDouble(a);
+		double y = toDouble(b);
+		if (Double.isNaN(x) || Double.isNaN(y)) {
+			return Boolean.compare(!Double.isNaN(x), !Double.isNaN(y));
+		}
+		return Double.compare(x, y);
+	}
+
+	private static BigDecimal toBigDecimal(Object number) {
+		if (number instanceof Decimal128) {
+			Decimal128 decimal = (Decimal128) number;
+			return decimal.isNaN() || decimal.isInfinite() ? null : decimal.bigDecimalValue();
+		}
+		if (number instanceof Integer || number instanceof Long) {
+			return BigDecimal.valueOf(((Number) number).longValue());
+		}
+		double d = ((Number) number).doubleValue();
+		return Double.isNaN(d) || Double.isInfinite(d) ? null : new BigDecimal(d);
+	}
+
+	private static double toDouble(Object number) {
+		if (number instanceof Decimal128) {
+			Decimal128 decimal = (Decimal128) number;
+			if (decimal.isNaN()) return Double.NaN;
+			if (decimal.isInfinite()) {
+				return decimal.isNegative() ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+			}
+			return decimal.bigDecimalValue().doubleValue();
+		}
+		return ((Number) number).doubleValue();
+	}
+
+	private static int compareStrings(String a, String b) {
+		int i = 0;
+		int j = 0;
+		while (i < a.length() && j < b.length()) {
+			int codePointA = a.codePointAt(i);
+			int codePointB = b.codePointAt(j);
+			if (codePointA != codePointB) {
+				return Integer.compare(codePointA, codePointB);
+			}
+			i += Character.charCount(codePointA);
+			j += Character.charCount(codePointB);
+		}
+		return Integer.compare(a.length() - i, b.length() - j);
+	}
+
+	private static int compareDocuments(Map<?, ?> a, Map<?, ?> b) {
+		Iterator<? extends Map.Entry<?, ?>> entriesA = a.entrySet().iterator();
+		Iterator<? extends Map.Entry<?, ?>> entriesB = b.entrySet().iterator();
+		while (entriesA.hasNext() && entriesB.hasNext()) {
+			Map.Entry<?, ?> entryA = entriesA.next();
+			Map.Entry<?, ?> entryB = entriesB.next();
+			int result = Integer.compare(sortRank(entryA.getValue()), sortRank(entryB.getValue()));
+			if (result == 0) {
+				result = compareStrings(entryA.getKey().toString(), entryB.getKey().toString());
+			}
+			if (result == 0) {
+				result = compare(entryA.getValue(), entryB.getValue());
+			}
+			if (result != 0) {
+				return result;
+			}
+		}
+		return Boolean.compare(entriesA.hasNext(), entriesB.hasNext());
+	}
+
+	private static int compareArrays(List<?> a, List<?> b) {
+		for (int i = 0; i < a.size() && i < b.size(); i++) {
+			int result = compare(a.get(i), b.get(i));
+			if (result != 0) {
+				return result;
+			}
+		}
+		return Integer.compare(a.size(), b.size());
+	}
+
+	private static int compareBinaries(Object a, Object b) {
+		byte[] dataA = a instanceof Binary ? ((Binary) a).getData() : (byte[]) a;
+		byte[] dataB = b instanceof Binary ? ((Binary) b).getData() : (byte[]) b;
+		if (dataA.length != dataB.length) {
+			return Integer.compare(dataA.length, dataB.length);
+		}
+		byte typeA = a instanceof Binary ? ((Binary) a).getType() : 0;
+		byte typeB = b instanceof Binary ? ((Binary) b).getType() : 0;
+		if (typeA != typeB) {
+			return Integer.compare(typeA & 0xff, typeB & 0xff);
+		}
+		for (int i = 0; i < dataA.length; i++) {
+			if (dataA[i] != dataB[i]) {
+				return Integer.compare(dataA[i] & 0xff, dataB[i] & 0xff);
+			}
+		}
+		return 0;
+	}
+
+	private static Long toLong(Object value) {
+		Object normalized = normalize(value);
+		if (normalized instanceof Long) {
+			return (Long) normalized;
+		}
+		if (value instanceof String) {
+			return Long.parseLong(((String) value).trim());
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,210 @@
+package com.mgackowski.mongoutil.model;
+
+import static com.mongodb.client.model.Aggregates.group;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Aggregates.project;
+import static com.mongodb.client.model.Aggregates.sample;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.include;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.BsonType;
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Samples the source and target collections of a join with {@code $sample}
+ * before a full pass, so that joins which would match (almost) nothing, for
+ * example because the keys were imported as strings on one side and as
+ * integers on the other, can be aborted before scanning everything.
+ */
+class SchemaSampler {
+
+	private static final Logger LOG = LogManager.getLogger(SchemaSampler.class);
+
+	private MongoDatabase db;
+	private int sampleSize;
+	private double minMatchRate;
+
+	SchemaSampler(MongoDatabase db, int sampleSize, double minMatchRate) {
+		this.db = db;
+		this.sampleSize = sampleSize;
+		this.minMatchRate = minMatchRate;
+	}
+
+	/**
+	 * Samples both sides of a join, logs the BSON types of the join keys and
+	 * the presence of the referenced and embedded fields, and estimates the
+	 * proportion of source documents that will find a target document.
+	 * <p>
+	 * The dominant BSON type of the target key is recorded on the join so
+	 * that it can coerce source keys if {@link JoinModel#coerceKeys()} is set.
+	 * @return false if the estimated match rate is below the minimum
+	 */
+	boolean check(String sourceCollName, JoinModel join) {
+
+		String sourceKey = join.getSourceForeignKeyColumn();
+		String targetKey = join.getTargetLinkColumn();
+
+		List<Document> sources = db.getCollection(sourceCollName)
+				.aggregate(Arrays.asList(
+						match(join.sourceQuery()),
+						sample(sampleSize)))
+				.allowDiskUse(true)
+				.into(new ArrayList<>());
+
+		if (sources.isEmpty()) {
+			LOG.warn("No documents in '{}' have field '{}' and match the filter, nothing to join; join={}",
+					sourceCollName, sourceKey, join);
+			return true;
+		}
+
+		MongoCollection<Document> targetColl = db.getCollection(join.getTargetCollection());
+		List<Document> targets = targetColl
+				.aggregate(Arrays.asList(
+						match(join.targetQuery()),
+						sample(sampleSize),
+						project(include(targetKey))))
+				.allowDiskUse(true)
+				.into(new ArrayList<>());
+
+		Map<BsonType, Integer> sourceTypes = new EnumMap<>(BsonType.class);
+		Map<BsonType, Integer> targetTypes = new EnumMap<>(BsonType.class);
+		int referencePresent = 0;
+		int[] embedPresent = new int[join.getEmbeddedFields().size()];
+
+		for (Document doc : sources) {
+			sourceTypes.merge(KeyTypes.typeOf(doc.get(sourceKey)), 1, Integer::sum);
+			if (doc.containsKey(join.getSourceLinkColumn())) {
+				referencePresent++;
+			}
+			for (int i = 0; i < embedPresent.length; i++) {
+				if (doc.containsKey(join.getEmbeddedFields().get(i))) {
+					embedPresent[i]++;
+				}
+			}
+		}
+		for (Document doc : targets) {
+			targetTypes.merge(KeyTypes.typeOf(doc.get(targetKey)), 1, Integer::sum);
+		}
+
+		LOG.info("Sampled {} documents of '{}' and {} of '{}'; key types {}: {}, {}: {}",
+				sources.size(), sourceCollName, targets.size(), join.getTargetCollection(),
+				sourceKey, sourceTypes, targetKey, targetTypes);
+
+		if (referencePresent < sources.size()) {
+			LOG.warn("Referenced field '{}' present in only {} of {} sampled documents; join={}",
+					join.getSourceLinkColumn(), referencePresent, sources.size(), join);
+		}
+		for (int i = 0; i < embedPresent.length; i++) {
+			if (embedPresent[i] == 0) {
+				LOG.warn("Embedded field '{}' not present in any sampled document; join={}",
+						join.getEmbeddedFields().get(i), join);
+			}
+		}
+
+		if (targets.isEmpty()) {
+			LOG.error("No documents in '{}' have field '{}' and match the filter, "
+					+ "no source document can match; join={}",
+					join.getTargetCollection(), targetKey, join);
+			return false;
+		}
+
+		BsonType targetType = dominant(targetTypes);
+		join.setTargetKeyType(targetType);
+		boolean typesDiffer = !matchTypes(targetTypes).containsAll(matchTypes(sourceTypes));
+		if (typesDiffer) {
+			LOG.warn("Key types differ between '{}.{}' {} and '{}.{}' {}; join={}",
+					sourceCollName, sourceKey, sourceTypes.keySet(),
+					join.getTargetCollection(), targetKey, targetTypes.keySet(), join);
+		}
+
+		double matchRate = estimateMatchRate(targetColl, join, sources,
+				join.isCoercingKeys() ? targetType : null);
+		LOG.info("Estimated match rate {}% for join={}",
+				String.format("%.1f", matchRate * 100), join);
+
+		if (matchRate < minMatchRate) {
+			if (typesDiffer && !join.isCoercingKeys()) {
+				double coercedRate = estimateMatchRate(targetColl, join,
+						sources, targetType);
+				if (coercedRate >= minMatchRate) {
+					LOG.error("Estimated match rate would be {}% with key coercion to {}, "
+							+ "consider enabling coerceKeys(); join={}",
+							String.format("%.1f", coercedRate * 100), targetType, join);
+				}
+			}
+			LOG.error("Estimated match rate below minimum of {}%; join={}",
+					String.format("%.1f", minMatchRate * 100), join);
+			return false;
+		}
+		return true;
+	}
+
+	private double estimateMatchRate(MongoCollection<Document> targetColl,
+			JoinModel join, List<Document> sources, BsonType coerceTo) {
+
+		String sourceKey = join.getSourceForeignKeyColumn();
+		String targetKey = join.getTargetLinkColumn();
+
+		List<Object> keys = new ArrayList<>(sources.size());
+		Set<Object> distinctKeys = new LinkedHashSet<>();
+		for (Document doc : sources) {
+			Object key = doc.get(sourceKey);
+			if (coerceTo != null) {
+				key = KeyTypes.coerce(key, coerceTo);
+			}
+			keys.add(KeyTypes.normalize(key));
+			distinctKeys.add(key);
+		}
+
+		Set<Object> matched = new HashSet<>();
+		for (Document key : targetColl.aggregate(Arrays.asList(
+				match(and(join.targetQuery(), in(targetKey, distinctKeys))),
+				group("$" + targetKey)))) {
+			matched.add(KeyTypes.normalize(key.get("_id")));
+		}
+
+		int hits = 0;
+		for (Object key : keys) {
+			if (matched.contains(key)) {
+				hits++;
+			}
+		}
+		return (double) hits / keys.size();
+	}
+
+	private static Set<BsonType> matchTypes(Map<BsonType, Integer> types) {
+		Set<BsonType> matchTypes = new HashSet<>();
+		for (BsonType type : types.keySet()) {
+			matchTypes.add(KeyTypes.matchType(type));
+		}
+		return matchTypes;
+	}
+
+	private static BsonType dominant(Map<BsonType, Integer> types) {
+		BsonType dominant = null;
+		int max = -1;
+		for (Map.Entry<BsonType, Integer> entry : types.entrySet()) {
+			if (entry.getValue() > max) {
+				dominant = entry.getKey();
+				max = entry.getValue();
+			}
+		}
+		return dominant;
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.mgackowski.mongoutil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BsonDocument;
+import org.junit.Test;
+
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketReadTimeoutException;
+import com.mongodb.ServerAddress;
+
+public class BatchRetryTest {
+
+	@Test
+	public void isTransient_recognizesStepdownsAndTimeouts() {
+		assertTrue(BatchRetry.isTransient(new MongoSocketReadTimeoutException(
+				"timeout", new ServerAddress(), new RuntimeException())));
+		assertTrue(BatchRetry.isTransient(commandError(11602)));
+		assertFalse(BatchRetry.isTransient(commandError(11000)));
+		assertFalse(BatchRetry.isTransient(new MongoException("invalid update")));
+	}
+
+	@Test
+	public void execute_retriesTransientErrorsUntilSuccess() throws InterruptedException {
+		JoinMetrics metrics = new JoinMetrics(new JoinModel("target"));
+		AtomicInteger attempts = new AtomicInteger();
+
+		new BatchRetry(3, 1, metrics).execute(() -> {
+			if (attempts.incrementAndGet() < 3) throw commandError(189);
+		});
+
+		assertEquals(3, attempts.get());
+		assertEquals(2, metrics.getRetries());
+		assertEquals(0, metrics.getGiveUps());
+	}
+
+	@Test
+	public void execute_givesUpWhenRetriesAreExhausted() throws InterruptedException {
+		JoinMetrics metrics = new JoinMetrics(new JoinModel("target"));
+		AtomicInteger attempts = new AtomicInteger();
+
+		try {
+			new BatchRetry(2, 1, metrics).execute(() -> {
+				attempts.incrementAndGet();
+				throw commandError(189);
+			});
+			fail("Expected the last error to be rethrown");
+		} catch (MongoCommandException e) {
+			assertEquals(3, attempts.get());
+			assertEquals(2, metrics.getRetries());
+			assertEquals(1, metrics.getGiveUps());
+		}
+	}
+
+	@Test
+	public void execute_doesNotRetryPermanentErrors() throws InterruptedException {
+		JoinMetrics metrics = new JoinMetrics(new JoinModel("target"));
+		AtomicInteger attempts = new AtomicInteger();
+
+		try {
+			new BatchRetry(5, 1, metrics).execute(() -> {
+				attempts.incrementAndGet();
+				throw commandError(11000);
+			});
+			fail("Expected the error to be rethrown");
+		} catch (MongoCommandException e) {
+			assertEquals(1, attempts.get());
+			assertEquals(0, metrics.getRetries());
+			assertEquals(0, metrics.getGiveUps());
+		}
+	}
+
+	private static MongoCommandException commandError(int code) {
+		return new MongoCommandException(BsonDocument.parse(
+				"{'ok' : 0, 'code' : " + code + ", 'errmsg' : 'error " + code + "'}"),
+				new ServerAddress());
+	}
+
+}
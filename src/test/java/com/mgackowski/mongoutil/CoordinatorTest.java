@@ -0,0 +1,276 @@
+package com.mgackowski.mongoutil;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.bson.Document;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mgackowski.mongoutil.model.CollModel;
+import com.mgackowski.mongoutil.model.DBModel;
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+public class CoordinatorTest {
+	
+	private List<String> collections = Arrays.asList
+			("planets", "moons", "organizations", "affiliations");
+	
+	private static String TEST_SERVER = "localhost:27017";
+	private static String TEST_DB_NAME  = "coordinatorTest";
+	private static int MAX_WAIT = 100;
+	private static String RUN_ID = "test-run";
+	private static int GENERATED = 20_000;
+	private static String MODEL_JSON = "{\"database\" : \"" + TEST_DB_NAME + "\", \"collections\" : [{"
+			+ "\"name\" : \"affiliations\", \"joins\" : ["
+			+ "{\"collection\" : \"organizations\", \"onSource\" : \"organization_id\", "
+			+ "\"onTarget\" : \"_id\", \"as\" : \"planets\", \"reference\" : \"planet_id\", "
+			+ "\"embed\" : []}, "
+			+ "{\"collection\" : \"planets\", \"onSource\" : \"planet_id\", "
+			+ "\"onTarget\" : \"_id\", \"as\" : \"organizations\", "
+			+ "\"reference\" : \"organization_id\", \"embed\" : [\"relationship\"]}]}]}";
+	
+	private static MongoDatabase db;
+	private static MongoClient client;
+	
+	private DBModel model = new DBModel()
+			.add(new CollModel("affiliations")
+					.join(new JoinModel("organizations")
+							.on("organization_id", "_id")
+							.as("planets").reference("planet_id"))
+					.join(new JoinModel("planets")
+							.on("planet_id", "_id")
+							.as("organizations")
+							.reference("organization_id")
+							.embed("relationship")));
+	
+	@Test
+	public void plan_createsUnitPerJoinAndPartition() {
+		Coordinator coordinator = new Coordinator(db, ShardTopology.unsharded(), RUN_ID);
+		
+		assertTrue(coordinator.plan(model, 3));
+		long planned = coordinator.status().get("pending");
+		assertTrue(coordinator.plan(model, 3));
+		
+		assertEquals(0, planned % 2);
+		assertTrue(planned >= 2);
+		assertEquals(planned, (long) coordinator.status().get("pending"));
+	}
+	
+	@Test
+	public void work_completesRunWithSeveralWorkers() throws Exception {
+		Coordinator coordinator = new Coordinator(db, ShardTopology.unsharded(), RUN_ID);
+		assertTrue(coordinator.plan(model, 3));
+		
+		ExecutorService workers = Executors.newFixedThreadPool(3);
+		List<Future<Boolean>> results = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			results.add(workers.submit(() -> new Worker(db, ShardTopology.unsharded(),
+					new DenormalizerConfig(), RUN_ID).work(model)));
+		}
+		for (Future<Boolean> result : results) {
+			assertTrue(result.get());
+		}
+		workers.shutdown();
+		
+		Map<String, Long> status = coordinator.status();
+		assertEquals(0, (long) status.get("pending"));
+		assertEquals(0, (long) status.get("leased"));
+		assertTrue(DenormalizerFactory.getVerifier(db).verify(model));
+	}
+	
+	@Test
+	public void work_reclaimsExpiredLease() {
+		Coordinator coordinator = new Coordinator(db, ShardTopology.unsharded(), RUN_ID);
+		assertTrue(coordinator.plan(model, 1));
+		Coordinator.units(db).updateMany(eq("run", RUN_ID),
+				combine(set("state", "leased"), set("owner", "crashed-worker"),
+						set("leaseExpires", new Date(System.currentTimeMillis() - 1000))));
+		
+		assertTrue(new Worker(db, ShardTopology.unsharded(), new DenormalizerConfig(), RUN_ID)
+				.leaseMillis(1000).work(model));
+		
+		assertEquals(0, (long) coordinator.status().get("leased"));
+		assertTrue(DenormalizerFactory.getVerifier(db).verify(model));
+	}
+	
+	@Test
+	public void work_rerunDoesNotDuplicateElements() {
+		Coordinator coordinator = new Coordinator(db, ShardTopology.unsharded(), RUN_ID);
+		assertTrue(coordinator.plan(model, 1));
+		assertTrue(new Worker(db, ShardTopology.unsharded(), new DenormalizerConfig(), RUN_ID)
+				.work(model));
+		Coordinator.units(db).updateMany(eq("run", RUN_ID),
+				combine(set("state", "pending"), set("attempts", 0)));
+		
+		assertTrue(new Worker(db, ShardTopology.unsharded(), new DenormalizerConfig(), RUN_ID)
+				.work(model));
+		
+		assertTrue(DenormalizerFactory.getVerifier(db).verify(model));
+	}
+	
+	@Test
+	public void work_failsUnitsOutOfAttempts() {
+		Coordinator coordinator = new Coordinator(db, ShardTopology.unsharded(), RUN_ID);
+		assertTrue(coordinator.plan(model, 1));
+		long planned = coordinator.status().get("pending");
+		Coordinator.units(db).updateMany(eq("run", RUN_ID),
+				combine(set("state", "leased"), set("owner", "crashed-worker"), set("attempts", 2),
+						set("leaseExpires", new Date(System.currentTimeMillis() - 1000))));
+		
+		assertFalse(new Worker(db, ShardTopology.unsharded(), new DenormalizerConfig(), RUN_ID)
+				.maxAttempts(2).work(model));
+		
+		assertEquals(planned, (long) coordinator.status().get("failed"));
+		assertEquals(0, db.getCollection("planets").count(exists("organizations")));
+	}
+	
+	@Test
+	public void worker_leavesConfigUnchanged() {
+		DenormalizerConfig config = new DenormalizerConfig().batchSize(7);
+		new Worker(db, ShardTopology.unsharded(), config, RUN_ID);
+		
+		assertFalse(config.isIdempotentWrites());
+	}
+	
+	@Test(timeout = 180_000)
+	public void work_recoversUnitOfKilledWorkerProcess() throws Exception {
+		List<Document> generated = new ArrayList<>();
+		for (int i = 0; i < GENERATED; i++) {
+			generated.add(new Document("_id", 10_000 + i).append("planet_id", i % 3 + 1)
+					.append("organization_id", String.valueOf((char) ('A' + i % 4)))
+					.append("relationship", "R" + i));
+		}
+		db.getCollection("affiliations").insertMany(generated);
+		Coordinator coordinator = new Coordinator(db, ShardTopology.unsharded(), RUN_ID);
+		assertTrue(coordinator.plan(model, 1));
+		long planned = coordinator.status().get("pending");
+		Path modelFile = Files.createTempFile("coordinator", ".json");
+		Files.write(modelFile, MODEL_JSON.getBytes(StandardCharsets.UTF_8));
+		
+		MongoCollection<Document> units = Coordinator.units(db);
+		Process crashing = startWorker(modelFile);
+		Document leased = null;
+		while (leased == null) {
+			assertTrue("worker exited before claiming a unit", crashing.isAlive());
+			leased = units.find(eq("state", "leased")).first();
+			Thread.sleep(5);
+		}
+		crashing.destroyForcibly().waitFor();
+		assertEquals("leased", units.find(eq("_id", leased.get("_id"))).first().getString("state"));
+		/* the killed worker sends no more heartbeats, so its lease runs out */
+		units.updateOne(eq("_id", leased.get("_id")),
+				set("leaseExpires", new Date(System.currentTimeMillis() - 1000)));
+		
+		List<Process> workers = Arrays.asList(startWorker(modelFile), startWorker(modelFile));
+		for (Process worker : workers) {
+			assertEquals(0, worker.waitFor());
+		}
+		Files.delete(modelFile);
+		
+		assertEquals(planned, (long) coordinator.status().get("done"));
+		assertEquals(2, (int) units.find(eq("_id", leased.get("_id"))).first().getInteger("attempts"));
+		assertTrue(DenormalizerFactory.getVerifier(db,
+				new DenormalizerConfig().idempotentWrites(true)).verify(model));
+	}
+	
+	/**
+	 * Starts the command line application as a separate JVM working on the
+	 * test run, with its output appended to a log file in the temp directory.
+	 */
+	private static Process startWorker(Path modelFile) throws IOException {
+		return new ProcessBuilder(
+				Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+				"-cp", System.getProperty("java.class.path"),
+				"com.mgackowski.mongoutil.cli.App",
+				"mongodb://" + TEST_SERVER, modelFile.toString(), "work", RUN_ID)
+				.redirectErrorStream(true)
+				.redirectOutput(Redirect.appendTo(Paths.get(System.getProperty("java.io.tmpdir"),
+						"coordinator-test-workers.log").toFile()))
+				.start();
+	}
+	
+	@Test
+	public void fingerprint_coversEveryJoinField() {
+		DBModel other = new DBModel()
+				.add(new CollModel("affiliations")
+						.join(new JoinModel("organizations")
+								.on("organization_id", "code")
+								.as("planets").reference("planet_id"))
+						.join(new JoinModel("planets")
+								.on("planet_id", "_id")
+								.as("organizations")
+								.reference("organization_id")
+								.embed("relationship")));
+		
+		assertNotEquals(Coordinator.fingerprint(model), Coordinator.fingerprint(other));
+	}
+	
+	@BeforeClass
+	public static void setUpClass() {
+        client = new MongoClient(new ServerAddress(TEST_SERVER),
+        		MongoClientOptions.builder()
+        		.serverSelectionTimeout(MAX_WAIT)
+        		.build());
+        db = client.getDatabase(TEST_DB_NAME);
+	}
+	
+    @Before
+    public void setUp() {
+    	loadTestData();
+    }
+    
+    @After
+    public void tearDown() {
+    	db.drop();
+    }
+    
+    @AfterClass
+    public static void tearDownClass() {
+        client.close();
+    }
+    
+	private void loadTestData() {
+		for(String colName : collections) {
+			MongoCollection<Document> col = db.getCollection(colName);
+			try(Stream<String> stream = Files.lines(
+					Paths.get(TestUtils.TEST_FILE_DIR + colName))) {
+				stream.forEach((String jsonDoc)
+						-> col.insertOne(Document.parse(jsonDoc)));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}	
+	}
+
+}
@@ -0,0 +1,108 @@
+package com.mgackowski.mongoutil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.bson.Document;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mgackowski.mongoutil.model.CollModel;
+import com.mgackowski.mongoutil.model.DBModel;
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoDatabase;
+
+public class DefaultRenormalizerTest {
+
+	private static String TEST_SERVER = "localhost:27017";
+	private static String TEST_DB_NAME  = "renormalizerTest";
+	private static int MAX_WAIT = 100;
+
+	private static MongoDatabase db;
+	private static MongoClient client;
+
+	@Test
+	public void isAtLeast_comparesMajorThenMinor() {
+		assertTrue(DefaultRenormalizer.isAtLeast(Arrays.asList(4, 2, 0, 0), 4, 2));
+		assertTrue(DefaultRenormalizer.isAtLeast(Arrays.asList(5, 0, 1, 0), 4, 2));
+		assertFalse(DefaultRenormalizer.isAtLeast(Arrays.asList(4, 0, 9, 0), 4, 2));
+		assertFalse(DefaultRenormalizer.isAtLeast(Arrays.asList(3, 6, 0, 0), 4, 2));
+		assertFalse(DefaultRenormalizer.isAtLeast(null, 4, 2));
+	}
+
+	@Test
+	public void renormalize_restoresEmbeddedDocumentsIntoEmptyCollection() {
+		DBModel model = new DBModel().add(new CollModel("books")
+				.join(new JoinModel("authors").on("authorId", "_id").as("books")
+						.reference("_id").embed("title")));
+
+		assertTrue(DenormalizerFactory.getRenormalizer(db).renormalize(model, true));
+
+		assertEquals(3, db.getCollection("books").count());
+		assertEquals(new Document("_id", "b3").append("authorId", 2).append("title", "C"),
+				db.getCollection("books").find(new Document("_id", "b3")).first());
+		assertEquals(0, db.getCollection("authors").count(new Document("books",
+				new Document("$exists", true))));
+	}
+
+	@Test
+	public void renormalize_refusesSeveralJoinsNotMatchedById() {
+		DBModel model = new DBModel().add(new CollModel("books")
+				.join(new JoinModel("authors").on("authorId", "_id").as("books")
+						.reference("title"))
+				.join(new JoinModel("authors").on("authorId", "_id").as("books")
+						.reference("_id")));
+
+		assertFalse(DenormalizerFactory.getRenormalizer(db).renormalize(model, false));
+		assertEquals(0, db.getCollection("books").count());
+	}
+
+	@Test
+	public void renormalize_refusesCoercedKeysOfUnknownType() {
+		DBModel model = new DBModel().add(new CollModel("books")
+				.join(new JoinModel("authors").on("authorId", "_id").as("books")
+						.reference("_id").embed("title").coerceKeys()));
+
+		assertFalse(DenormalizerFactory.getRenormalizer(db).renormalize(model, false));
+		assertEquals(0, db.getCollection("books").count());
+	}
+
+	@BeforeClass
+	public static void setUpClass() {
+		client = new MongoClient(new ServerAddress(TEST_SERVER),
+				MongoClientOptions.builder()
+				.serverSelectionTimeout(MAX_WAIT)
+				.build());
+		db = client.getDatabase(TEST_DB_NAME);
+	}
+
+	@Before
+	public void setUp() {
+		db.getCollection("authors").insertMany(Arrays.asList(
+				new Document("_id", 1).append("books", Arrays.asList(
+						new Document("_id", "b1").append("title", "A"),
+						new Document("_id", "b2").append("title", "B"))),
+				new Document("_id", 2).append("books", Arrays.asList(
+						new Document("_id", "b3").append("title", "C")))));
+	}
+
+	@After
+	public void tearDown() {
+		db.drop();
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		client.close();
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.mgackowski.mongoutil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mgackowski.mongoutil.model.CollModel;
+import com.mgackowski.mongoutil.model.DBModel;
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoDatabase;
+
+public class DefaultVerifierTest {
+	
+	private static String TEST_SERVER = "localhost:27017";
+	private static String TEST_DB_NAME  = "verifierTest";
+	private static int MAX_WAIT = 100;
+	
+	private static MongoDatabase db;
+	private static MongoClient client;
+	
+	private JoinModel join = new JoinModel("authors").on("authorId", "_id").as("books")
+			.reference("_id");
+	private DBModel model = new DBModel().add(new CollModel("books").join(join)).preflight(0, 0);
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void targetPipeline_countsAndSamplesMismatchesSeparately() {
+		List<Bson> pipeline = DefaultVerifier.targetPipeline(join, "temp", 10);
+		
+		Document facet = (Document) ((Document) pipeline.get(pipeline.size() - 1)).get("$facet");
+		List<Document> count = (List<Document>) facet.get("mismatchCount");
+		List<Document> sample = (List<Document>) facet.get("mismatchSample");
+		
+		assertEquals("temp", ((Document) ((Document) pipeline.get(2)).get("$lookup")).get("from"));
+		assertEquals(new Document("$count", "count"), count.get(1));
+		assertEquals(new Document("$limit", 10), sample.get(1));
+		for (Document stage : sample) {
+			assertFalse(stage.containsKey("$group"));
+		}
+	}
+	
+	@Test
+	public void verify_passesForConsistentArrays() {
+		assertTrue(DenormalizerFactory.getVerifier(db).verify(model));
+	}
+	
+	@Test
+	public void verify_failsForWrongArrayLength() {
+		db.getCollection("authors").updateOne(new Document("_id", 1),
+				new Document("$set", new Document("books", Arrays.asList("b1"))));
+		
+		assertFalse(DenormalizerFactory.getVerifier(db).verify(model));
+	}
+	
+	@Test
+	public void verify_countsDistinctReferencesAfterIdempotentWrites() {
+		db.getCollection("books").updateMany(new Document(),
+				new Document("$set", new Document("title", "T")));
+		db.getCollection("authors").updateOne(new Document("_id", 1),
+				new Document("$set", new Document("titles", Arrays.asList("T"))));
+		db.getCollection("authors").updateOne(new Document("_id", 2),
+				new Document("$set", new Document("titles", Arrays.asList("T"))));
+		DBModel titles = new DBModel().add(new CollModel("books")
+				.join(new JoinModel("authors").on("authorId", "_id").as("titles")
+						.reference("title"))).preflight(0, 0);
+		
+		assertFalse(DenormalizerFactory.getVerifier(db).verify(titles));
+		assertTrue(DenormalizerFactory.getVerifier(db,
+				new DenormalizerConfig().idempotentWrites(true)).verify(titles));
+	}
+	
+	@BeforeClass
+	public static void setUpClass() {
+		client = new MongoClient(new ServerAddress(TEST_SERVER),
+				MongoClientOptions.builder()
+				.serverSelectionTimeout(MAX_WAIT)
+				.build());
+		db = client.getDatabase(TEST_DB_NAME);
+	}
+	
+	@Before
+	public void setUp() {
+		db.getCollection("books").insertMany(Arrays.asList(
+				new Document("_id", "b1").append("authorId", 1),
+				new Document("_id", "b2").append("authorId", 1),
+				new Document("_id", "b3").append("authorId", 2)));
+		db.getCollection("authors").insertMany(Arrays.asList(
+				new Document("_id", 1).append("books", Arrays.asList("b1", "b2")),
+				new Document("_id", 2).append("books", Arrays.asList("b3"))));
+	}
+	
+	@After
+	public void tearDown() {
+		db.drop();
+	}
+	
+	@AfterClass
+	public static void tearDownClass() {
+		client.close();
+	}
+
+}
@@ -0,0 +1,107 @@
+package com.mgackowski.mongoutil;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.BsonBinaryReader;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mgackowski.mongoutil.model.JoinModel;
+
+public class FileSinkTest {
+
+	private final JoinModel join = new JoinModel("authors").on("author_id", "_id")
+			.reference("_id").as("books");
+
+	private Path file;
+
+	@Before
+	public void createFile() throws IOException {
+		file = Files.createTempFile("denormalizer-sink", null);
+	}
+
+	@After
+	public void deleteFile() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Test
+	public void jsonLinesSink_writesOneLinePerUpdateAsItArrives() throws IOException {
+		try (Sink sink = new JsonLinesSink(file)) {
+			sink.write(join, updates());
+			sink.write(join, Arrays.asList(
+					new TargetUpdate(1L, null, Collections.singletonList("D"))));
+			sink.completed(join);
+			assertEquals(3, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+		}
+
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		assertEquals(Document.parse("{'collection' : 'authors', 'array' : 'books', "
+				+ "'keyField' : '_id', 'key' : 1, 'elements' : ['A'], 'complete' : false}"),
+				Document.parse(lines.get(0)));
+		assertEquals(Document.parse("{'collection' : 'authors', 'array' : 'books', "
+				+ "'keyField' : '_id', 'key' : 1, 'elements' : ['D'], 'complete' : false}"),
+				Document.parse(lines.get(2)));
+	}
+
+	@Test
+	public void jsonLinesSink_marksCompleteArrays() throws IOException {
+		try (Sink sink = new JsonLinesSink(file)) {
+			sink.write(join, Arrays.asList(
+					new TargetUpdate(3, null, Arrays.asList("E", "F"), true)));
+			sink.completed(join);
+			assertEquals(1, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+			sink.write(join, Arrays.asList(
+					new TargetUpdate(4, null, Arrays.asList("G"), true)));
+		}
+
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		assertEquals(2, lines.size());
+		assertEquals(Arrays.asList("G"), Document.parse(lines.get(1)).get("elements"));
+		assertEquals(true, Document.parse(lines.get(1)).get("complete"));
+	}
+
+	@Test
+	public void bsonFileSink_writesConsecutiveDocuments() throws IOException {
+		try (Sink sink = new BsonFileSink(file)) {
+			sink.write(join, updates());
+			sink.completed(join);
+		}
+
+		List<Document> records = new ArrayList<>();
+		ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+		while (bytes.hasRemaining()) {
+			ByteBuffer record = bytes.slice();
+			record.limit(bytes.getInt(bytes.position()));
+			try (BsonBinaryReader reader = new BsonBinaryReader(record)) {
+				records.add(new DocumentCodec().decode(reader, DecoderContext.builder().build()));
+			}
+			bytes.position(bytes.position() + record.limit());
+		}
+		assertEquals(2, records.size());
+		assertEquals(2, records.get(1).get("key"));
+		assertEquals(Arrays.asList("B", "C"), records.get(1).get("elements"));
+	}
+
+	private static List<TargetUpdate> updates() {
+		return Arrays.asList(
+				new TargetUpdate(1, null, Collections.singletonList("A")),
+				new TargetUpdate(2, null, Arrays.asList("B", "C")));
+	}
+
+}
@@ -0,0 +1,168 @@
+package com.mgackowski.mongoutil;
+
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoDatabase;
+
+public class JoinPipelineTest {
+
+	private static String TEST_SERVER = "localhost:27017";
+	private static String TEST_DB_NAME  = "joinPipelineTest";
+	private static int MAX_WAIT = 100;
+	private static int BOOKS = 100;
+
+	private static MongoDatabase db;
+	private static MongoClient client;
+
+	private JoinModel join = new JoinModel("authors").on("authorId", "_id").as("books")
+			.reference("_id");
+	private List<TargetUpdate> written = Collections.synchronizedList(new ArrayList<>());
+
+	@Test(timeout = 10000)
+	public void run_writesUpdatesInSourceOrderWithSingleThreads() {
+		JoinPipeline pipeline = pipeline(new DenormalizerConfig().batchSize(7)
+				.sink((join, updates) -> written.addAll(updates)));
+
+		assertTrue(pipeline.run(Collections.singletonList(new Document())));
+
+		assertEquals(BOOKS, written.size());
+		for (int i = 0; i < BOOKS; i++) {
+			assertEquals(Collections.singletonList(i), written.get(i).getElements());
+			assertEquals(i % 10, written.get(i).getKey());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void run_stopsReadingWhileWritesAreBlocked() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		JoinPipeline pipeline = pipeline(new DenormalizerConfig().batchSize(1).queueCapacity(1)
+				.sink((join, updates) -> {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					written.addAll(updates);
+				}));
+		ExecutorService runner = Executors.newSingleThreadExecutor();
+		Future<Boolean> result = runner.submit(
+				() -> pipeline.run(Collections.singletonList(new Document())));
+
+		Thread.sleep(500);
+		/* one batch in the writer, one held by each blocked stage, one per queue */
+		long read = pipeline.getMetrics().getRead();
+		release.countDown();
+
+		assertTrue(result.get());
+		runner.shutdown();
+		assertTrue("read " + read + " batches ahead of a blocked writer", read <= 5);
+		assertEquals(BOOKS, written.size());
+	}
+
+	@Test(timeout = 10000)
+	public void run_endsEveryStageOnceAllPartitionsAreRead() {
+		AtomicInteger completed = new AtomicInteger();
+		JoinPipeline pipeline = pipeline(new DenormalizerConfig().batchSize(3)
+				.readerThreads(3).transformerThreads(2).writerThreads(4)
+				.sink(new Sink() {
+					@Override
+					public void write(JoinModel join, List<TargetUpdate> updates) {
+						written.addAll(updates);
+					}
+					@Override
+					public void completed(JoinModel join) {
+						completed.incrementAndGet();
+					}
+				}));
+		List<Bson> partitions = Arrays.asList(lt("_id", 30), gte("_id", 30));
+
+		assertTrue(pipeline.run(partitions));
+
+		assertEquals(BOOKS, written.size());
+		assertEquals(BOOKS, written.stream().map(TargetUpdate::getElements).distinct().count());
+		assertEquals(1, completed.get());
+	}
+
+	@Test(timeout = 10000)
+	public void run_failsAndStopsAllStagesOnError() {
+		AtomicInteger completed = new AtomicInteger();
+		JoinPipeline pipeline = pipeline(new DenormalizerConfig().batchSize(1).queueCapacity(1)
+				.transformerThreads(2).writerThreads(2)
+				.sink(new Sink() {
+					@Override
+					public void write(JoinModel join, List<TargetUpdate> updates) {
+						throw new AssertionError("sink failed");
+					}
+					@Override
+					public void completed(JoinModel join) {
+						completed.incrementAndGet();
+					}
+				}));
+
+		assertFalse(pipeline.run(Collections.singletonList(new Document())));
+
+		assertTrue(pipeline.getMetrics().getRead() < BOOKS);
+		assertEquals(0, completed.get());
+	}
+
+	private JoinPipeline pipeline(DenormalizerConfig config) {
+		return new JoinPipeline(db, "books", join, ShardTopology.unsharded(),
+				config.reportIntervalSeconds(1));
+	}
+
+	@BeforeClass
+	public static void setUpClass() {
+		client = new MongoClient(new ServerAddress(TEST_SERVER),
+				MongoClientOptions.builder()
+				.serverSelectionTimeout(MAX_WAIT)
+				.build());
+		db = client.getDatabase(TEST_DB_NAME);
+	}
+
+	@Before
+	public void setUp() {
+		List<Document> books = new ArrayList<>();
+		for (int i = 0; i < BOOKS; i++) {
+			books.add(new Document("_id", i).append("authorId", i % 10));
+		}
+		db.getCollection("books").insertMany(books);
+	}
+
+	@After
+	public void tearDown() {
+		db.drop();
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		client.close();
+	}
+
+}
@@ -0,0 +1,133 @@
+package com.mgackowski.mongoutil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+public class LookupCacheTest {
+
+	private static String TEST_SERVER = "localhost:27017";
+	private static String TEST_DB_NAME  = "lookupCacheTest";
+	private static int MAX_WAIT = 100;
+
+	private static MongoDatabase db;
+	private static MongoClient client;
+
+	private AtomicInteger queries = new AtomicInteger();
+
+	@Test
+	public void getAll_fetchesMissingIdsInOneQuery() {
+		LookupCache cache = cache(10);
+
+		Map<Object, Document> found = cache.getAll(Arrays.asList(1, 2, 3, 99));
+
+		assertEquals(1, queries.get());
+		assertEquals(3, found.size());
+		assertEquals(new Document("name", "r2"), found.get(2));
+		assertEquals(4, cache.size());
+	}
+
+	@Test
+	public void getAll_countsEveryIdAsHitOrMiss() {
+		LookupCache cache = cache(10);
+
+		cache.getAll(Arrays.asList(1, 99, 1, 99, 2L));
+		assertEquals(3, cache.getMisses());
+		assertEquals(2, cache.getHits());
+
+		Map<Object, Document> found = cache.getAll(Arrays.asList(1L, 99, 2));
+		assertEquals(1, queries.get());
+		assertEquals(3, cache.getMisses());
+		assertEquals(5, cache.getHits());
+		assertEquals(2, found.size());
+		assertTrue(found.containsKey(1L));
+	}
+
+	@Test
+	public void getAll_evictsLeastRecentlyUsedIds() {
+		LookupCache cache = cache(2);
+		cache.getAll(Collections.singletonList(1));
+		cache.getAll(Collections.singletonList(2));
+		cache.getAll(Collections.singletonList(1));
+		cache.getAll(Collections.singletonList(3));
+		assertEquals(3, queries.get());
+		assertEquals(2, cache.size());
+
+		cache.getAll(Arrays.asList(1, 3));
+		assertEquals(3, queries.get());
+		cache.getAll(Collections.singletonList(2));
+		assertEquals(4, queries.get());
+	}
+
+	/**
+	 * @return a cache of the name of each region, counting the queries it
+	 * sends to the collection
+	 */
+	@SuppressWarnings("unchecked")
+	private LookupCache cache(int maxSize) {
+		MongoCollection<Document> regions = db.getCollection("regions");
+		MongoCollection<Document> counting = (MongoCollection<Document>) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { MongoCollection.class },
+				(proxy, method, args) -> {
+					if (method.getName().equals("find")) {
+						queries.incrementAndGet();
+					}
+					try {
+						return method.invoke(regions, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+		return new LookupCache(counting, Collections.singletonList("name"), maxSize);
+	}
+
+	@BeforeClass
+	public static void setUpClass() {
+		client = new MongoClient(new ServerAddress(TEST_SERVER),
+				MongoClientOptions.builder()
+				.serverSelectionTimeout(MAX_WAIT)
+				.build());
+		db = client.getDatabase(TEST_DB_NAME);
+	}
+
+	@Before
+	public void setUp() {
+		List<Document> regions = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			regions.add(new Document("_id", i).append("name", "r" + i));
+		}
+		db.getCollection("regions").insertMany(regions);
+	}
+
+	@After
+	public void tearDown() {
+		db.drop();
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		client.close();
+	}
+
+}
@@ -0,0 +1,114 @@
+package com.mgackowski.mongoutil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.Test;
+
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.MongoClient;
+
+public class MergeJoinTest {
+
+	private final JoinModel join = new JoinModel("authors").on("authorId", "_id").as("books")
+			.reference("_id");
+	private final List<TargetUpdate> written = new ArrayList<>();
+	private final Sink sink = (join, updates) -> written.addAll(updates);
+
+	@Test
+	public void run_writesOneCompleteArrayPerKey() throws IOException {
+		MergeJoin merge = merge(2);
+
+		merge.run(docs("authorId", 1, 1, 2, 2L, 2.0).iterator(),
+				docs("_id", 0, 1, 2, 3).iterator());
+
+		assertEquals(2, written.size());
+		assertEquals(1, written.get(0).getKey());
+		assertEquals(Arrays.asList("s0", "s1"), written.get(0).getElements());
+		assertEquals(Arrays.asList("s2", "s3", "s4"), written.get(1).getElements());
+		assertTrue(written.get(1).isComplete());
+		assertEquals(5, merge.getMetrics().getRead());
+	}
+
+	@Test
+	public void run_reportsOrphanedKeys() throws IOException {
+		MergeJoin merge = merge(100);
+
+		merge.run(docs("authorId", 0, 1, 5, 5, 7).iterator(),
+				docs("_id", 1, 3, 6).iterator());
+
+		assertEquals(1, written.size());
+		assertEquals(3, merge.getOrphanKeys());
+		assertEquals(4, merge.getOrphanDocuments());
+		assertEquals(Arrays.asList(0, 5, 7), merge.getOrphanSample());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void run_rejectsUnsortedSource() throws IOException {
+		merge(100).run(docs("authorId", 2, 1).iterator(), docs("_id", 1, 2).iterator());
+	}
+
+	@Test
+	public void run_refusesArrayOverMaximumDocumentSize() throws IOException {
+		JoinModel embedding = new JoinModel("authors").on("authorId", "_id").as("books")
+				.reference("_id").embed("text");
+		char[] text = new char[2048];
+		Arrays.fill(text, 'x');
+		List<Document> sources = docs("authorId", Collections.nCopies(
+				MergeJoin.LARGE_GROUP, 1).toArray());
+		sources.forEach(doc -> doc.append("text", new String(text)));
+		MergeJoin merge = new MergeJoin(embedding, Collections.emptyList(), null, sink,
+				new DenormalizerConfig().batchSize(100), new JoinMetrics(embedding));
+
+		try {
+			merge.run(sources.iterator(), docs("_id", 1).iterator());
+			fail("array over the maximum document size was written");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("maximum document size"));
+		}
+		assertTrue(written.isEmpty());
+	}
+
+	@Test
+	public void sourceProjection_includesOnlyElementFields() {
+		JoinModel lookup = new JoinModel("products").on("productId", "_id").as("releases")
+				.reference("releaseId").embed("since").lookup("releases", "name");
+
+		assertEquals(BsonDocument.parse("{'productId' : 1, 'releaseId' : 1, 'since' : 1, '_id' : 0}"),
+				MergeJoinDenormalizer.sourceProjection(lookup).toBsonDocument(BsonDocument.class,
+						MongoClient.getDefaultCodecRegistry()));
+		assertEquals(BsonDocument.parse("{'authorId' : 1, '_id' : 1}"),
+				MergeJoinDenormalizer.sourceProjection(join).toBsonDocument(BsonDocument.class,
+						MongoClient.getDefaultCodecRegistry()));
+	}
+
+	private MergeJoin merge(int batchSize) {
+		DenormalizerConfig config = new DenormalizerConfig().batchSize(batchSize);
+		return new MergeJoin(join, Collections.emptyList(), null, sink, config,
+				new JoinMetrics(join));
+	}
+
+	/**
+	 * @return documents with the given values of the field, and {@code _id}
+	 * values "s0", "s1"... unless the field is {@code _id}
+	 */
+	private static List<Document> docs(String field, Object... values) {
+		List<Document> docs = new ArrayList<>();
+		for (int i = 0; i < values.length; i++) {
+			Document doc = field.equals("_id") ? new Document()
+					: new Document("_id", "s" + i);
+			docs.add(doc.append(field, values[i]));
+		}
+		return docs;
+	}
+
+}
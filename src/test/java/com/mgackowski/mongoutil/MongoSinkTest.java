@@ -0,0 +1,86 @@
+package com.mgackowski.mongoutil;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.UpdateManyModel;
+
+public class MongoSinkTest {
+
+	private static String TEST_SERVER = "localhost:27017";
+	private static String TEST_DB_NAME  = "mongoSinkTest";
+	private static int MAX_WAIT = 100;
+
+	private static MongoDatabase db;
+	private static MongoClient client;
+
+	private JoinModel join = new JoinModel("authors").on("authorId", "_id").as("books")
+			.reference("_id").embed("title");
+
+	@Test
+	public void write_samplesBothWritesOfIdempotentEmbedding() throws Exception {
+		MongoSink sink = new MongoSink(db, join, new DenormalizerConfig()
+				.idempotentWrites(true).profile(10, 1), new JoinMetrics(join));
+
+		sink.write(join, Arrays.asList(update(1, "b1", "A"), update(2, "b2", "B")));
+		sink.write(join, Collections.singletonList(update(1, "b1", "C")));
+
+		assertEquals(Collections.singletonList(new Document("_id", "b1").append("title", "C")),
+				db.getCollection("authors").find(eq("_id", 1)).first().get("books"));
+		List<UpdateManyModel<Document>> sampled = sink.getProfiler().slowest();
+		assertEquals(3, sampled.size());
+		for (UpdateManyModel<Document> update : sampled) {
+			assertTrue(update.getUpdate().toBsonDocument(BsonDocument.class,
+					MongoClient.getDefaultCodecRegistry()).containsKey("$push"));
+		}
+	}
+
+	private static TargetUpdate update(int author, String book, String title) {
+		return new TargetUpdate(author, eq("_id", author), Collections.singletonList(
+				new Document("_id", book).append("title", title)));
+	}
+
+	@BeforeClass
+	public static void setUpClass() {
+		client = new MongoClient(new ServerAddress(TEST_SERVER),
+				MongoClientOptions.builder()
+				.serverSelectionTimeout(MAX_WAIT)
+				.build());
+		db = client.getDatabase(TEST_DB_NAME);
+	}
+
+	@Before
+	public void setUp() {
+		db.getCollection("authors").insertMany(Arrays.asList(
+				new Document("_id", 1), new Document("_id", 2)));
+	}
+
+	@After
+	public void tearDown() {
+		db.drop();
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		client.close();
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.mgackowski.mongoutil;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.junit.Test;
+
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.MongoClient;
+
+public class ShardTopologyTest {
+	
+	@Test
+	public void partitionsFrom_mergesAdjacentChunksPerShard() {
+		List<Document> chunks = Arrays.asList(
+				chunk(new MinKey(), 10, "shardA"),
+				chunk(10, 20, "shardA"),
+				chunk(20, 30, "shardB"),
+				chunk(30, new MaxKey(), "shardA"));
+		
+		List<Bson> partitions = ShardTopology.partitionsFrom("k", chunks);
+		
+		assertEquals(3, partitions.size());
+		assertEquals(BsonDocument.parse("{'$or' : [{'k' : {'$lt' : 20}}, {'k' : {'$gte' : 30}}]}"),
+				toBson(partitions.get(0)));
+		assertEquals(BsonDocument.parse("{'k' : {'$gte' : 20, '$lt' : 30}}"),
+				toBson(partitions.get(1)));
+		assertEquals(BsonDocument.parse("{'$nor' : [{'k' : {'$lt' : 20}}, "
+				+ "{'k' : {'$gte' : 20, '$lt' : 30}}, {'k' : {'$gte' : 30}}]}"),
+				toBson(partitions.get(2)));
+	}
+	
+	@Test
+	public void partitionsFrom_returnsSinglePartitionWithoutChunks() {
+		List<Bson> partitions = ShardTopology.partitionsFrom("k", Collections.emptyList());
+		
+		assertEquals(1, partitions.size());
+		assertEquals(new BsonDocument(), toBson(partitions.get(0)));
+	}
+	
+	@Test
+	public void routed_addsMappedFieldsPresentInSource() {
+		Map<String, String> routing = new LinkedHashMap<>();
+		routing.put("region", "authorRegion");
+		routing.put("tenant", "tenant");
+		
+		Bson filter = ShardTopology.routed(new Document("_id", 1), routing,
+				new Document("authorRegion", "EU").append("region", "US"));
+		
+		assertEquals(BsonDocument.parse("{'_id' : 1, 'region' : 'EU'}"), toBson(filter));
+	}
+	
+	@Test
+	public void sourceRouting_ignoresUnmappedFieldsOfTheSameName() {
+		ShardTopology topology = new ShardTopology(null) {
+			@Override
+			public Document shardKey(String namespace) {
+				return new Document("region", 1).append("_id", 1);
+			}
+		};
+		JoinModel join = new JoinModel("authors").on("authorId", "_id").as("books")
+				.reference("_id");
+		
+		assertEquals(Collections.emptyMap(), topology.sourceRouting("db.authors", join));
+		assertEquals(Collections.singletonMap("region", "authorRegion"),
+				topology.sourceRouting("db.authors", join.route("region", "authorRegion")));
+	}
+	
+	private static Document chunk(Object min, Object max, String shard) {
+		return new Document("min", new Document("k", min))
+				.append("max", new Document("k", max))
+				.append("shard", shard);
+	}
+	
+	private static BsonDocument toBson(Bson bson) {
+		return bson.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+	}
+
+}
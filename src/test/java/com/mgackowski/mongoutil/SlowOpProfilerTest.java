@@ -0,0 +1,80 @@
+package com.mgackowski.mongoutil;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.push;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.Test;
+
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.MongoClient;
+import com.mongodb.client.model.UpdateManyModel;
+
+public class SlowOpProfilerTest {
+
+	private final JoinModel join = new JoinModel("authors").on("authorId", "_id").as("books")
+			.reference("_id");
+
+	@Test
+	public void record_keepsSlowestUpdates() {
+		SlowOpProfiler profiler = new SlowOpProfiler(join, 3, 1);
+
+		for (long nanos : Arrays.asList(5L, 1L, 9L, 3L, 7L, 2L, 8L)) {
+			profiler.record(update(nanos), nanos, () -> 0);
+		}
+
+		assertEquals(Arrays.asList(9, 8, 7), keys(profiler.slowest()));
+	}
+
+	@Test
+	public void record_readsArraySizeOnlyForKeptUpdates() {
+		SlowOpProfiler profiler = new SlowOpProfiler(join, 2, 1);
+		AtomicInteger reads = new AtomicInteger();
+
+		for (long nanos : Arrays.asList(5L, 6L, 1L, 2L, 7L)) {
+			profiler.record(update(nanos), nanos, reads::incrementAndGet);
+		}
+
+		assertEquals(3, reads.get());
+		assertEquals(Arrays.asList(7, 6), keys(profiler.slowest()));
+	}
+
+	@Test
+	public void shouldSample_isDisabledByDefault() {
+		DenormalizerConfig config = new DenormalizerConfig();
+		SlowOpProfiler disabled = new SlowOpProfiler(join, config.getProfileTopK(),
+				config.getProfileSampleEvery());
+		SlowOpProfiler enabled = new SlowOpProfiler(join, 10, 2);
+
+		assertFalse(disabled.shouldSample());
+		assertFalse(enabled.shouldSample());
+		assertTrue(enabled.shouldSample());
+	}
+
+	/**
+	 * @return an update of the target document whose key is the duration
+	 */
+	private static UpdateManyModel<Document> update(long nanos) {
+		return new UpdateManyModel<>(eq("_id", (int) nanos), push("books", "b"));
+	}
+
+	private static List<Object> keys(List<UpdateManyModel<Document>> updates) {
+		List<Object> keys = new ArrayList<>();
+		for (UpdateManyModel<Document> update : updates) {
+			keys.add(update.getFilter().toBsonDocument(BsonDocument.class,
+					MongoClient.getDefaultCodecRegistry())
+					.getInt32("_id").getValue());
+		}
+		return keys;
+	}
+
+}
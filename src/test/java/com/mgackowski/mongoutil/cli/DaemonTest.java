@@ -0,0 +1,141 @@
+package com.mgackowski.mongoutil.cli;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+
+/**
+ * Jobs in these tests fail before reaching the database, so no MongoDB
+ * instance is needed.
+ */
+public class DaemonTest {
+
+	private MongoClient client;
+	private Daemon daemon;
+	private String model;
+
+	@Before
+	public void setUp() throws IOException {
+		client = new MongoClient(new ServerAddress("localhost", 27999));
+		daemon = new Daemon(client, 2);
+		model = Document.parse(new String(Files.readAllBytes(
+				Paths.get("src/test/resources/testmodel.json")), UTF_8))
+				.append("mode", "no-such-mode").toJson();
+	}
+
+	@After
+	public void tearDown() {
+		daemon.close();
+		client.close();
+	}
+
+	@Test
+	public void watch_movesFailedModelsWithStatus() throws Exception {
+		Path directory = Files.createTempDirectory("daemon");
+		daemon.watch(directory);
+
+		Document report = submit(directory, "tenant.json", "tenant-1.json");
+		assertEquals("FAILED", report.getString("status"));
+		assertEquals("no-such-mode", report.getString("mode"));
+		assertEquals("tenant-1", report.getString("name"));
+		assertTrue(Files.exists(directory.resolve(Daemon.FAILED).resolve("tenant-1.json")));
+		assertFalse(Files.exists(directory.resolve(Daemon.RUNNING).resolve("tenant-1.json")));
+	}
+
+	@Test
+	public void watch_keepsReportsOfModelsWithTheSameName() throws Exception {
+		Path directory = Files.createTempDirectory("daemon");
+		daemon.watch(directory);
+
+		submit(directory, "tenant.json", "tenant-1.json");
+		Document second = submit(directory, "tenant.json", "tenant-2.json");
+
+		assertEquals(2, second.get("job", Number.class).intValue());
+		assertTrue(Files.exists(directory.resolve(Daemon.FAILED).resolve("tenant-1.json.status")));
+	}
+
+	/**
+	 * Moves the model into the watched directory under the given name and
+	 * waits for the status report of the job.
+	 */
+	private Document submit(Path directory, String fileName, String reportedName)
+			throws Exception {
+		Path pending = Files.write(directory.resolve(fileName + ".tmp"), model.getBytes(UTF_8));
+		Files.move(pending, directory.resolve(fileName));
+
+		Path status = directory.resolve(Daemon.FAILED).resolve(reportedName + ".status");
+		for (int i = 0; i < 100 && !Files.exists(status); i++) {
+			Thread.sleep(100);
+		}
+		return Document.parse(new String(Files.readAllBytes(status), UTF_8));
+	}
+
+	@Test
+	public void listen_reportsEveryJobOnItsConnection() throws Exception {
+		daemon.listen(0);
+
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+				PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(socket.getInputStream(), UTF_8))) {
+			out.println("{not a model");
+			Document invalid = Document.parse(in.readLine());
+			assertEquals("FAILED", invalid.getString("status"));
+			assertTrue(invalid.getString("error").startsWith("Invalid model"));
+
+			out.println(model);
+			Document report = Document.parse(in.readLine());
+			while (!report.getString("status").equals("FAILED")) {
+				report = Document.parse(in.readLine());
+			}
+			assertTrue(report.getString("error").contains("no-such-mode"));
+
+			out.println("status");
+			assertEquals(1, Document.parse(in.readLine()).get("job", Number.class).intValue());
+			assertEquals(2, Document.parse(in.readLine()).get("job", Number.class).intValue());
+		}
+	}
+
+	@Test
+	public void listen_refusesDestructiveModesAndExportPaths() throws Exception {
+		daemon.listen(0);
+
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+				PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(socket.getInputStream(), UTF_8))) {
+			out.println(Document.parse(model).append("mode", "renormalize-remove").toJson());
+			Document removal = Document.parse(in.readLine());
+			assertEquals("FAILED", removal.getString("status"));
+			assertTrue(removal.getString("error").contains("not accepted"));
+			assertEquals("socket-" + socket.getLocalPort() + "-1", removal.getString("name"));
+
+			out.println(Document.parse(model).append("mode", "export-jsonl")
+					.append("argument", "../elsewhere.jsonl").toJson());
+			Document export = Document.parse(in.readLine());
+			assertEquals("FAILED", export.getString("status"));
+			assertTrue(export.getString("error").contains("../elsewhere.jsonl"));
+			assertEquals("socket-" + socket.getLocalPort() + "-2", export.getString("name"));
+		}
+	}
+
+}
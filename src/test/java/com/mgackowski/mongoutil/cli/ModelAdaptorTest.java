@@ -1,6 +1,8 @@
 package com.mgackowski.mongoutil.cli;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.nio.file.FileSystems;
@@ -50,6 +52,11 @@ public class ModelAdaptorTest {
 		assertEquals("test-embed-A1", joinA1.getEmbeddedFields().get(0));
 		assertEquals("test-embed-A2", joinA1.getEmbeddedFields().get(1));
 		assertEquals("test-embed-A3", joinA1.getEmbeddedFields().get(2));
+		assertFalse(joinA1.isCoercingKeys());
+		assertEquals(null, joinA1.getLookupCollection());
+		assertEquals(null, joinA1.getSourceFilter());
+		assertEquals(null, joinA1.getTargetFilter());
+		assertTrue(joinA1.getRouting().isEmpty());
 		
 		JoinModel joinA2 = collA.getJoins().get(1);
 		assertEquals("test-target-collection-name-A2", joinA2.getTargetCollection());
@@ -62,6 +69,10 @@ public class ModelAdaptorTest {
 		assertEquals("test-embed-A4", joinA2.getEmbeddedFields().get(0));
 		assertEquals("test-embed-A5", joinA2.getEmbeddedFields().get(1));
 		assertEquals("test-embed-A6", joinA2.getEmbeddedFields().get(2));
+		assertEquals("test-lookup-collection-A2", joinA2.getLookupCollection());
+		assertEquals(2, joinA2.getLookupFields().size());
+		assertEquals("test-lookup-A1", joinA2.getLookupFields().get(0));
+		assertEquals("test-lookup-A2", joinA2.getLookupFields().get(1));
 		
 		CollModel collB = result.getCollections().get(1);
 		assertEquals("test-source-collection-name-B", collB.getName());
@@ -78,6 +89,11 @@ public class ModelAdaptorTest {
 		assertEquals("test-embed-B1", joinB.getEmbeddedFields().get(0));
 		assertEquals("test-embed-B2", joinB.getEmbeddedFields().get(1));
 		assertEquals("test-embed-B3", joinB.getEmbeddedFields().get(2));
+		assertTrue(joinB.isCoercingKeys());
+		assertEquals(Document.parse("{'test-status-B1' : 'active', 'test-year-B1' : {'$gte' : 2017}}"),
+				joinB.getSourceFilter());
+		assertEquals(Document.parse("{'test-region-B1' : 'EU'}"), joinB.getTargetFilter());
+		assertEquals("test-source-region-B1", joinB.getRouting().get("test-region-B1"));
 		
 	}
 
@@ -0,0 +1,97 @@
+package com.mgackowski.mongoutil.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.BsonType;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mgackowski.mongoutil.model.CollModel;
+import com.mgackowski.mongoutil.model.DBModel;
+import com.mgackowski.mongoutil.model.JoinModel;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoDatabase;
+
+public class DatasetGeneratorTest {
+
+	private static String TEST_SERVER = "localhost:27017";
+	private static String TEST_DB_NAME  = "datasetGeneratorTest";
+	private static int MAX_WAIT = 100;
+
+	private static MongoDatabase db;
+	private static MongoClient client;
+
+	private DBModel model = new DBModel()
+			.add(new CollModel("editions")
+					.join(new JoinModel("products").on("productId", "_id").as("releases")
+							.reference("releaseId").lookup("releases", "name")));
+
+	@Test
+	public void generate_drawsForeignAndLookupKeysFromExistingKeys() {
+		assertTrue(new DatasetGenerator(db)
+				.count("editions", 200).count("products", 10).count("releases", 5)
+				.keyType(BsonType.STRING).width(1, 8).batchSize(30)
+				.generate(model));
+
+		assertEquals(200, db.getCollection("editions").count());
+		assertEquals(10, db.getCollection("products").count());
+		assertEquals(5, db.getCollection("releases").count());
+
+		List<String> productIds = distinct("products", "_id");
+		List<String> releaseIds = distinct("releases", "_id");
+		assertTrue(productIds.containsAll(distinct("editions", "productId")));
+		List<String> referenced = distinct("editions", "releaseId");
+		assertTrue(releaseIds.containsAll(referenced));
+		assertTrue(referenced.size() > 1);
+
+		Document edition = db.getCollection("editions").find().first();
+		assertTrue(edition.get("releaseId") instanceof String);
+		assertEquals(8, edition.getString("filler0").length());
+		assertEquals(8, db.getCollection("releases").find().first().getString("name").length());
+	}
+
+	@Test
+	public void generate_refusesNonEmptyCollections() {
+		db.getCollection("products").insertOne(new Document("_id", "existing"));
+
+		assertFalse(new DatasetGenerator(db).defaultCount(10).generate(model));
+		assertEquals(0, db.getCollection("editions").count());
+
+		assertTrue(new DatasetGenerator(db).defaultCount(10).dropExisting(true).generate(model));
+		assertEquals(10, db.getCollection("products").count());
+	}
+
+	private static List<String> distinct(String collection, String field) {
+		return db.getCollection(collection).distinct(field, String.class).into(new ArrayList<>());
+	}
+
+	@BeforeClass
+	public static void setUpClass() {
+		client = new MongoClient(new ServerAddress(TEST_SERVER),
+				MongoClientOptions.builder()
+				.serverSelectionTimeout(MAX_WAIT)
+				.build());
+		db = client.getDatabase(TEST_DB_NAME);
+	}
+
+	@After
+	public void tearDown() {
+		db.drop();
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		client.close();
+	}
+
+}
@@ -0,0 +1,61 @@
+package com.mgackowski.mongoutil.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.SplittableRandom;
+
+import org.junit.Test;
+
+public class FanoutTest {
+
+	private static final int SAMPLES = 200_000;
+
+	@Test
+	public void uniform_spreadsKeysEvenly() {
+		long[] counts = sample(Fanout.uniform().sampler(10));
+
+		for (int key = 0; key < 10; key++) {
+			assertEquals(SAMPLES / 10.0, counts[key], SAMPLES * 0.01);
+		}
+	}
+
+	@Test
+	public void zipf_followsPowerLaw() {
+		long[] counts = sample(Fanout.zipf(1.0).sampler(1000));
+
+		double harmonic = 0;
+		for (int k = 1; k <= 1000; k++) {
+			harmonic += 1.0 / k;
+		}
+		assertEquals(1 / harmonic, (double) counts[0] / SAMPLES, 0.005);
+		assertEquals(1 / harmonic / 2, (double) counts[1] / SAMPLES, 0.005);
+		assertTrue(counts[0] > counts[9] * 5);
+	}
+
+	@Test
+	public void zipf_staysInRangeForLargeKeySpaces() {
+		KeySampler sampler = Fanout.zipf(1.5).sampler(50_000_000L);
+		SplittableRandom random = new SplittableRandom(1);
+
+		for (int i = 0; i < SAMPLES; i++) {
+			long key = sampler.next(random);
+			assertTrue(key >= 0 && key < 50_000_000L);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zipf_rejectsNonPositiveExponent() {
+		Fanout.zipf(0);
+	}
+
+	private static long[] sample(KeySampler sampler) {
+		long[] counts = new long[1000];
+		SplittableRandom random = new SplittableRandom(7);
+		for (int i = 0; i < SAMPLES; i++) {
+			counts[(int) sampler.next(random)]++;
+		}
+		return counts;
+	}
+
+}
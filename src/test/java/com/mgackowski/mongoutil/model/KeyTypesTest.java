@@ -0,0 +1,90 @@
+package com.mgackowski.mongoutil.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class KeyTypesTest {
+	
+	@Test
+	public void matchType_treatsAllNumbersAlike() {
+		assertEquals(BsonType.DOUBLE, KeyTypes.matchType(BsonType.INT32));
+		assertEquals(KeyTypes.matchType(BsonType.INT64), KeyTypes.matchType(BsonType.INT32));
+		assertEquals(BsonType.STRING, KeyTypes.matchType(BsonType.STRING));
+	}
+	
+	@Test
+	public void coerce_convertsNumericStrings() {
+		assertEquals(42, KeyTypes.coerce("42", BsonType.INT32));
+		assertEquals(42L, KeyTypes.coerce(" 42", BsonType.INT64));
+		assertEquals(4.5, KeyTypes.coerce("4.5", BsonType.DOUBLE));
+	}
+	
+	@Test
+	public void coerce_convertsNumbersToStrings() {
+		assertEquals("7", KeyTypes.coerce(7, BsonType.STRING));
+		assertEquals("7", KeyTypes.coerce(7.0, BsonType.STRING));
+	}
+	
+	@Test
+	public void coerce_convertsHexStringsToObjectIds() {
+		ObjectId id = new ObjectId();
+		assertEquals(id, KeyTypes.coerce(id.toHexString(), BsonType.OBJECT_ID));
+	}
+	
+	@Test
+	public void coerce_keepsValuesThatCannotBeConverted() {
+		assertEquals("A", KeyTypes.coerce("A", BsonType.INT32));
+		assertEquals(4.5, KeyTypes.coerce(4.5, BsonType.INT64));
+		assertEquals(Long.MAX_VALUE, KeyTypes.coerce(Long.MAX_VALUE, BsonType.INT32));
+	}
+	
+	@Test
+	public void normalize_equatesIntegralNumbers() {
+		assertEquals(KeyTypes.normalize(1), KeyTypes.normalize(1L));
+		assertEquals(KeyTypes.normalize(1), KeyTypes.normalize(1.0));
+	}
+	
+	@Test
+	public void compare_ordersTypesAsMongoDBDoes() {
+		ObjectId id = new ObjectId();
+		List<Object> expected = Arrays.asList(new MinKey(), null, 5, "a",
+				new Document("a", 1), Arrays.asList(1), id, true, new Date(0), new MaxKey());
+		List<Object> keys = new ArrayList<>(expected);
+		Collections.reverse(keys);
+		
+		keys.sort(KeyTypes.SORT_ORDER);
+		
+		assertEquals(expected, keys);
+	}
+	
+	@Test
+	public void compare_equatesNumbersOfDifferentTypes() {
+		assertEquals(0, KeyTypes.compare(1, 1L));
+		assertEquals(0, KeyTypes.compare(1L, 1.0));
+		assertEquals(0, KeyTypes.compare(2.5, Decimal128.parse("2.5")));
+		assertTrue(KeyTypes.compare(Long.MAX_VALUE, Long.MAX_VALUE - 1) > 0);
+		assertTrue(KeyTypes.compare(Double.NaN, Long.MIN_VALUE) < 0);
+	}
+	
+	@Test
+	public void compare_ordersStringsByCodePoint() {
+		assertTrue(KeyTypes.compare("B", "a") < 0);
+		assertTrue(KeyTypes.compare("\uFFFF", "\uD83D\uDE00") < 0);
+		assertEquals(0, KeyTypes.compare("abc", "abc"));
+	}
+
+}
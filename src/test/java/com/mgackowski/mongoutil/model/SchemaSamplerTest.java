@@ -0,0 +1,94 @@
+package com.mgackowski.mongoutil.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.bson.BsonType;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoDatabase;
+
+public class SchemaSamplerTest {
+	
+	private static String TEST_SERVER = "localhost:27017";
+	private static String TEST_DB_NAME  = "schemaSamplerTest";
+	private static int MAX_WAIT = 100;
+	
+	private static MongoDatabase db;
+	private static MongoClient client;
+	
+	@Test
+	public void check_passesWhenKeyTypesMatch() {
+		JoinModel join = join();
+		
+		assertTrue(new SchemaSampler(db, 50, 0.5).check("books", join));
+		assertEquals(BsonType.INT32, join.getTargetKeyType());
+	}
+	
+	@Test
+	public void check_failsWhenKeysAreStringsOnOneSide() {
+		db.getCollection("books").updateMany(new Document(),
+				new Document("$set", new Document("authorId", "1")));
+		
+		assertFalse(new SchemaSampler(db, 50, 0.5).check("books", join()));
+	}
+	
+	@Test
+	public void check_passesWithCoercedKeys() {
+		db.getCollection("books").updateMany(new Document(),
+				new Document("$set", new Document("authorId", "1")));
+		JoinModel join = join().coerceKeys();
+		
+		assertTrue(new SchemaSampler(db, 50, 0.5).check("books", join));
+		assertEquals(1, join.coerceKey("1"));
+	}
+	
+	@Test
+	public void validateAll_refusesCoercionWithoutPreflight() {
+		DBModel model = new DBModel().add(new CollModel("books").join(join().coerceKeys()))
+				.preflight(0, 0);
+		
+		assertFalse(model.validateAll(db));
+	}
+	
+	private static JoinModel join() {
+		return new JoinModel("authors").on("authorId", "_id").as("books").reference("_id");
+	}
+	
+	@BeforeClass
+	public static void setUpClass() {
+		client = new MongoClient(new ServerAddress(TEST_SERVER),
+				MongoClientOptions.builder()
+				.serverSelectionTimeout(MAX_WAIT)
+				.build());
+		db = client.getDatabase(TEST_DB_NAME);
+	}
+	
+	@Before
+	public void setUp() {
+		for (int i = 0; i < 10; i++) {
+			db.getCollection("authors").insertOne(new Document("_id", i));
+			db.getCollection("books").insertOne(new Document("_id", "b" + i).append("authorId", i));
+		}
+	}
+	
+	@After
+	public void tearDown() {
+		db.drop();
+	}
+	
+	@AfterClass
+	public static void tearDownClass() {
+		client.close();
+	}
+
+}